@@ -119,16 +119,18 @@ public class BuildFromLayout {
 		
 		System.err.println();
 		
+		System.err.println("Parsing piece layouts");
+		ArrayList<Layout> layouts = getLayouts();
+		System.err.println("Found layouts for " + layouts.size() + " pieces");
+		
+		System.err.println();
+		
 		System.err.println("Getting piece sequences");
-		HashMap<String, String> pieceSeqs = getPieceSeqs();
+		HashMap<String, String> pieceSeqs = getPieceSeqs(layouts);
 		System.err.println("Found " + pieceSeqs.size() + " piece sequences");
 		
 		System.err.println();
 		
-		System.err.println("Parsing piece layouts");
-		ArrayList<Layout> layouts = getLayouts();
-		System.err.println("Found layouts for " + layouts.size() + " pieces");
-		
 		int numPieces = layouts.size();
 		
 		System.err.println("Building scaffolds");
@@ -351,25 +353,7 @@ public class BuildFromLayout {
 			}
 		}
 		
-		HashMap<String, String> res = new HashMap<String, String>();
-		
-		Scanner input = new Scanner(new FileInputStream(new File(readsFn)));
-		String[] lines = new String[4];
-		while(input.hasNext())
-		{
-			for(int i = 0; i<4; i++)
-			{
-				lines[i] = input.nextLine();
-			}
-			String readName = lines[0].split(" ")[0].substring(1).trim();
-			
-			if(readsNeeded.contains(readName))
-			{
-				res.put(readName, lines[1]);
-			}
-		}
-		
-		return res;
+		return ReadUtils.getFastqMap(readsFn, readsNeeded);
 	}
 	
 	/*
@@ -392,35 +376,18 @@ public class BuildFromLayout {
 	}
 	
 	/*
-	 * Gets a map from piece name to its sequence
+	 * Gets a map from piece name to its sequence for the pieces in the layouts
 	 */
-	static HashMap<String, String> getPieceSeqs() throws Exception
+	static HashMap<String, String> getPieceSeqs(ArrayList<Layout> layouts) throws Exception
 	{
-		HashMap<String, String> res = new HashMap<String, String>();
-		Scanner input = new Scanner(new FileInputStream(new File(piecesFn)));
-		String pieceName = "";
-		StringBuilder sb = new StringBuilder("");
-		while(input.hasNext())
-		{
-			String line = input.nextLine();
-			if(line.startsWith(">"))
-			{
-				if(pieceName.length() > 0)
-				{
-					res.put(pieceName, sb.toString());
-				}
-				sb = new StringBuilder();
-				pieceName = line.split(" ")[0].substring(1);
-			}
-			else
-			{
-				sb.append(line);
-			}
-		}
-		if(pieceName.length() > 0)
+		HashSet<String> pieceNames = new HashSet<String>();
+		for(Layout layout : layouts)
 		{
-			res.put(pieceName, sb.toString());
+			pieceNames.add(layout.pieceName);
 		}
+		IndexedFasta pieces = new IndexedFasta(piecesFn);
+		HashMap<String, String> res = pieces.getSequences(pieceNames);
+		pieces.close();
 		return res;
 	}
 
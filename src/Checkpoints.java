@@ -0,0 +1,391 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/*
+ * Binary checkpoints of the expensive stages of scaffolding, so that a run which dies partway through can pick up where it left off
+ *
+ * Each stage has one file in the checkpoint directory: magic, the stage, a key, and then the stage's product
+ *   The key is a hash of the inputs and parameters the product depends on, chained through the keys of the earlier stages,
+ *   so a checkpoint is only used if it would be the same as what the run would compute
+ *   Files are written under a temporary name and renamed once complete, so a run dying while writing one never leaves a partial checkpoint
+ *
+ * Maps are written in their iteration order and rebuilt by inserting in that order, which gives them the same iteration order as the original,
+ *   so a resumed run adds edges in the same order as an uninterrupted one
+ */
+public class Checkpoints {
+
+	// "GRFTCKP1"
+	static final long MAGIC = 0x47524654434B5031L;
+
+	// The stages in the order they are run
+	static final int ALIGNMENTS = 0, CORRECTIONS = 1, CHAINS = 2, KMERS = 3, GRAPH = 4;
+	static final String[] NAMES = new String[] {"alignments", "corrections", "chains", "kmers", "graph"};
+
+	String dir;
+	long[] keys;
+
+	/*
+	 * Checkpoints in a given directory, with keys for the current inputs and parameters
+	 */
+	Checkpoints(String dir, boolean keepReads) throws IOException
+	{
+		this.dir = dir;
+		new File(dir).mkdirs();
+
+		keys = new long[NAMES.length];
+		long key = hashFile(0, Settings.pafFn);
+		key = hash(key, Settings.MIN_QUALITY, Settings.MIN_ALIGNMENT_LENGTH);
+		keys[ALIGNMENTS] = key;
+		key = hash(key, Settings.ALLOW_BREAKS ? 1 : 0);
+		keys[CORRECTIONS] = key;
+		key = hash(key, Settings.MAX_GAP, Settings.MAX_GAP_BETWEEN_CONTIGS, Settings.MAX_HANGING, Double.doubleToLongBits(Settings.MAX_HANGING_PROP));
+		keys[CHAINS] = key;
+		key = hashFile(key, Settings.fastaFn);
+		keys[KMERS] = key;
+		key = hash(key, Double.doubleToLongBits(Settings.MIN_WEIGHT), keepReads ? 1 : 0);
+		keys[GRAPH] = key;
+	}
+
+	/*
+	 * Mixes values into a hash
+	 */
+	static long hash(long h, long... values)
+	{
+		for(long x : values)
+		{
+			h = (h ^ x) * 0x9E3779B97F4A7C15L;
+			h ^= h >>> 29;
+		}
+		return h;
+	}
+
+	/*
+	 * Mixes an input file into a hash by its path, size, and modification time
+	 */
+	static long hashFile(long h, String fn)
+	{
+		File f = new File(fn);
+		byte[] b = f.getAbsolutePath().getBytes(StandardCharsets.UTF_8);
+		return hash(h, IndexedFastq.NameBloomFilter.hash(b, 0, b.length), f.length(), f.lastModified());
+	}
+
+	File file(int stage)
+	{
+		return new File(dir, NAMES[stage] + ".ckpt");
+	}
+
+	/*
+	 * Whether there is a complete checkpoint for a stage which was made from the current inputs and parameters
+	 */
+	boolean isValid(int stage)
+	{
+		if(!file(stage).exists())
+		{
+			return false;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(file(stage)));
+			try {
+				return in.readLong() == MAGIC && in.readInt() == stage && in.readLong() == keys[stage];
+			} finally {
+				in.close();
+			}
+		} catch(IOException e) {
+			return false;
+		}
+	}
+
+	/*
+	 * The latest stage which can be resumed from, or -1 if there is none
+	 * Later stages need the products of earlier ones, so every stage up to it must have a valid checkpoint
+	 */
+	int latest()
+	{
+		int res = -1;
+		while(res + 1 < NAMES.length && isValid(res + 1))
+		{
+			res++;
+		}
+		return res;
+	}
+
+	/*
+	 * Starts writing the checkpoint for a stage, under a temporary name until it is finished
+	 */
+	DataOutputStream create(int stage) throws IOException
+	{
+		System.err.println("Writing checkpoint: " + NAMES[stage]);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file(stage).getPath() + ".tmp"), 1 << 20));
+		out.writeLong(MAGIC);
+		out.writeInt(stage);
+		out.writeLong(keys[stage]);
+		return out;
+	}
+
+	/*
+	 * Finishes writing the checkpoint for a stage and puts it in place
+	 */
+	void finish(int stage, DataOutputStream out) throws IOException
+	{
+		out.close();
+		Files.move(new File(file(stage).getPath() + ".tmp").toPath(), file(stage).toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/*
+	 * Opens the checkpoint for a stage, skipping past its header
+	 */
+	DataInputStream open(int stage) throws IOException
+	{
+		System.err.println("Reading checkpoint: " + NAMES[stage]);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file(stage)), 1 << 20));
+		in.readLong();
+		in.readInt();
+		in.readLong();
+		return in;
+	}
+
+	/*
+	 * The filtered alignments, grouped by read
+	 */
+	void saveAlignments(HashMap<String, ArrayList<SortablePafAlignment>> alignmentsPerRead) throws IOException
+	{
+		DataOutputStream out = create(ALIGNMENTS);
+		HashMap<String, Integer> contigIds = new HashMap<String, Integer>();
+		ArrayList<String> contigNames = new ArrayList<String>();
+		out.writeInt(alignmentsPerRead.size());
+		for(String readName : alignmentsPerRead.keySet())
+		{
+			out.writeUTF(readName);
+			writeAlignments(out, alignmentsPerRead.get(readName), contigIds, contigNames);
+		}
+		finish(ALIGNMENTS, out);
+	}
+
+	HashMap<String, ArrayList<SortablePafAlignment>> loadAlignments() throws IOException
+	{
+		DataInputStream in = open(ALIGNMENTS);
+		HashMap<String, ArrayList<SortablePafAlignment>> res = new HashMap<>();
+		ArrayList<String> contigNames = new ArrayList<String>();
+		int n = in.readInt();
+		for(int i = 0; i<n; i++)
+		{
+			String readName = in.readUTF();
+			res.put(readName, readAlignments(in, readName, contigNames));
+		}
+		in.close();
+		return res;
+	}
+
+	/*
+	 * The misassemblies found, which are enough to rebuild the contig breaker
+	 */
+	void saveCorrections(ArrayList<CorrectMisassemblies.NovelAdjacency> corrections) throws IOException
+	{
+		DataOutputStream out = create(CORRECTIONS);
+		out.writeInt(corrections.size());
+		for(CorrectMisassemblies.NovelAdjacency na : corrections)
+		{
+			out.writeUTF(na.contig1);
+			out.writeUTF(na.contig2);
+			out.writeInt(na.pos1);
+			out.writeInt(na.pos2);
+			out.writeInt(na.length1);
+			out.writeInt(na.length2);
+			out.writeUTF(na.read);
+			out.writeDouble(na.weight);
+			out.writeInt(na.type);
+			out.writeInt(na.support);
+		}
+		finish(CORRECTIONS, out);
+	}
+
+	ArrayList<CorrectMisassemblies.NovelAdjacency> loadCorrections() throws IOException
+	{
+		DataInputStream in = open(CORRECTIONS);
+		ArrayList<CorrectMisassemblies.NovelAdjacency> res = new ArrayList<CorrectMisassemblies.NovelAdjacency>();
+		int n = in.readInt();
+		for(int i = 0; i<n; i++)
+		{
+			String contig1 = in.readUTF(), contig2 = in.readUTF();
+			int pos1 = in.readInt(), pos2 = in.readInt(), length1 = in.readInt(), length2 = in.readInt();
+			String read = in.readUTF();
+			double weight = in.readDouble();
+			int type = in.readInt();
+			CorrectMisassemblies.NovelAdjacency na = new CorrectMisassemblies.NovelAdjacency(contig1, contig2, pos1, pos2, length1, length2, read, weight, type);
+			na.support = in.readInt();
+			res.add(na);
+		}
+		in.close();
+		return res;
+	}
+
+	/*
+	 * The chains of alignments to each read, after remapping to any broken contigs
+	 */
+	void saveChains(HashMap<String, ArrayList<ArrayList<SortablePafAlignment>>> chainsPerRead) throws IOException
+	{
+		DataOutputStream out = create(CHAINS);
+		HashMap<String, Integer> contigIds = new HashMap<String, Integer>();
+		ArrayList<String> contigNames = new ArrayList<String>();
+		out.writeInt(chainsPerRead.size());
+		for(String readName : chainsPerRead.keySet())
+		{
+			out.writeUTF(readName);
+			ArrayList<ArrayList<SortablePafAlignment>> chains = chainsPerRead.get(readName);
+			out.writeInt(chains.size());
+			for(ArrayList<SortablePafAlignment> chain : chains)
+			{
+				writeAlignments(out, chain, contigIds, contigNames);
+			}
+		}
+		finish(CHAINS, out);
+	}
+
+	HashMap<String, ArrayList<ArrayList<SortablePafAlignment>>> loadChains() throws IOException
+	{
+		DataInputStream in = open(CHAINS);
+		HashMap<String, ArrayList<ArrayList<SortablePafAlignment>>> res = new HashMap<>();
+		ArrayList<String> contigNames = new ArrayList<String>();
+		int n = in.readInt();
+		for(int i = 0; i<n; i++)
+		{
+			String readName = in.readUTF();
+			int numChains = in.readInt();
+			ArrayList<ArrayList<SortablePafAlignment>> chains = new ArrayList<ArrayList<SortablePafAlignment>>();
+			for(int j = 0; j<numChains; j++)
+			{
+				chains.add(readAlignments(in, readName, contigNames));
+			}
+			res.put(readName, chains);
+		}
+		in.close();
+		return res;
+	}
+
+	/*
+	 * Writes a list of alignments to the same read, giving each contig a number the first time it appears in the file
+	 */
+	static void writeAlignments(DataOutputStream out, ArrayList<SortablePafAlignment> alignments, HashMap<String, Integer> contigIds, ArrayList<String> contigNames) throws IOException
+	{
+		out.writeInt(alignments.size());
+		for(SortablePafAlignment spa : alignments)
+		{
+			int contig = contigNames.size();
+			Integer id = contigIds.get(spa.contigName);
+			if(id == null)
+			{
+				contigIds.put(spa.contigName, contig);
+				contigNames.add(spa.contigName);
+				out.writeInt(contig);
+				out.writeUTF(spa.contigName);
+			}
+			else
+			{
+				out.writeInt(id);
+			}
+			out.writeInt(spa.readLength);
+			out.writeInt(spa.readStart);
+			out.writeInt(spa.readEnd);
+			out.writeByte(spa.strand);
+			out.writeInt(spa.contigLength);
+			out.writeInt(spa.contigStart);
+			out.writeInt(spa.contigEnd);
+			out.writeInt(spa.mapq);
+		}
+	}
+
+	static ArrayList<SortablePafAlignment> readAlignments(DataInputStream in, String readName, ArrayList<String> contigNames) throws IOException
+	{
+		int n = in.readInt();
+		ArrayList<SortablePafAlignment> res = new ArrayList<SortablePafAlignment>(n);
+		for(int i = 0; i<n; i++)
+		{
+			int contig = in.readInt();
+			if(contig == contigNames.size())
+			{
+				contigNames.add(in.readUTF());
+			}
+			int readLength = in.readInt(), readStart = in.readInt(), readEnd = in.readInt();
+			char strand = (char)in.readByte();
+			int contigLength = in.readInt(), contigStart = in.readInt(), contigEnd = in.readInt();
+			int mapq = in.readInt();
+			res.add(new SortablePafAlignment(readName, readLength, readStart, readEnd, strand,
+					contigNames.get(contig), contigLength, contigStart, contigEnd, mapq));
+		}
+		return res;
+	}
+
+	/*
+	 * The cumulative k-mer frequencies of each contig, which is all that is needed to weight edges
+	 */
+	void saveKmers(ContigKmerFrequencyMap freq) throws IOException
+	{
+		DataOutputStream out = create(KMERS);
+		out.writeInt(freq.k);
+		out.writeInt(freq.samplingFrequency);
+		out.writeInt(freq.contigToFreqSum.size());
+		for(String s : freq.contigToFreqSum.keySet())
+		{
+			long[] sums = freq.contigToFreqSum.get(s);
+			out.writeUTF(s);
+			out.writeInt(freq.contigLengths.get(s));
+			out.writeInt(sums.length);
+			for(long x : sums)
+			{
+				out.writeLong(x);
+			}
+		}
+		finish(KMERS, out);
+	}
+
+	ContigKmerFrequencyMap loadKmers() throws IOException
+	{
+		DataInputStream in = open(KMERS);
+		int k = in.readInt(), samplingFrequency = in.readInt();
+		HashMap<String, long[]> contigToFreqSum = new HashMap<String, long[]>();
+		HashMap<String, Integer> contigLengths = new HashMap<String, Integer>();
+		int n = in.readInt();
+		for(int i = 0; i<n; i++)
+		{
+			String s = in.readUTF();
+			contigLengths.put(s, in.readInt());
+			long[] sums = new long[in.readInt()];
+			for(int j = 0; j<sums.length; j++)
+			{
+				sums[j] = in.readLong();
+			}
+			contigToFreqSum.put(s, sums);
+		}
+		in.close();
+		return new ContigKmerFrequencyMap(k, samplingFrequency, contigToFreqSum, contigLengths);
+	}
+
+	/*
+	 * The aggregated scaffold graph, including the edges which allow broken contigs to be rejoined
+	 */
+	void saveGraph(ScaffoldGraph sg) throws IOException
+	{
+		DataOutputStream out = create(GRAPH);
+		ScaffoldGraphFile.writeGraph(out, sg);
+		finish(GRAPH, out);
+	}
+
+	ScaffoldGraph loadGraph() throws IOException
+	{
+		DataInputStream in = open(GRAPH);
+		ScaffoldGraph res = ScaffoldGraphFile.readGraph(in);
+		in.close();
+		return res;
+	}
+}
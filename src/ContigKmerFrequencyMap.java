@@ -41,9 +41,20 @@ public class ContigKmerFrequencyMap {
 		contigLengths = new HashMap<>();
 	}
 	
+	/*
+	 * A map whose sum arrays have already been built, such as one read from a checkpoint
+	 * Only the sum arrays are needed for queries, so the k-mer counts are not kept
+	 */
+	ContigKmerFrequencyMap(int k, int samplingFrequency, HashMap<String, long[]> contigToFreqSum, HashMap<String, Integer> contigLengths)
+	{
+		this.k = k;
+		this.samplingFrequency = samplingFrequency;
+		this.contigToFreqSum = contigToFreqSum;
+		this.contigLengths = contigLengths;
+	}
+	
 	double getAverageFrequency(String name, int start, int end)
 	{
-		System.out.println(name);
 		long[] csum = contigToFreqSum.get(name);
 		int a = Math.max(0, start - k + 1);
 		int b = Math.min(contigLengths.get(name)-k-1, end);
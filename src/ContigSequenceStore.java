@@ -0,0 +1,132 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+/*
+ * The sequences of the relevant contigs and subcontigs, after any breaking of misassemblies
+ * Sequences are either all held in memory or, in low-memory mode, fetched from an indexed FASTA file each time they are needed
+ * Subcontigs are views of a range of the contig they came from, so a broken contig is only ever held once
+ */
+public class ContigSequenceStore {
+
+	// Sequences held in memory, including the whole of every broken contig, or null if they are fetched as needed
+	HashMap<String, String> sequences;
+
+	// For fetching sequences as needed
+	IndexedFasta fasta;
+	
+	// The length of every sequence in the store, and the location in the original contigs of every subcontig
+	HashMap<String, Integer> lengths;
+	HashMap<String, CorrectMisassemblies.ContigBreaker.Subcontig> ranges;
+
+	/*
+	 * A store of sequences which are already in memory, with contigs which the splitter broke replaced by their subcontigs
+	 */
+	ContigSequenceStore(HashMap<String, String> sequences, CorrectMisassemblies.ContigBreaker splitter)
+	{
+		this.sequences = sequences;
+		lengths = new HashMap<String, Integer>();
+		for(String s : sequences.keySet())
+		{
+			lengths.put(s, sequences.get(s).length());
+		}
+		addSubcontigs(splitter);
+	}
+
+	/*
+	 * A store which fetches the given contigs from a FASTA file, with contigs which the splitter broke replaced by their subcontigs
+	 */
+	ContigSequenceStore(String fn, HashSet<String> names, CorrectMisassemblies.ContigBreaker splitter) throws IOException
+	{
+		fasta = new IndexedFasta(fn);
+		lengths = new HashMap<String, Integer>();
+		for(IndexedFasta.Entry e : fasta.entries)
+		{
+			if(names.contains(e.name))
+			{
+				lengths.put(e.name, e.length);
+			}
+		}
+		fasta.assemblyStats();
+		addSubcontigs(splitter);
+	}
+
+	/*
+	 * Replaces the names of broken contigs with those of their subcontigs
+	 * The subcontigs are added after the other names, in the order their contigs are seen, so that both kinds of store list them in the same order
+	 */
+	void addSubcontigs(CorrectMisassemblies.ContigBreaker splitter)
+	{
+		HashMap<String, CorrectMisassemblies.ContigBreaker.Subcontig> pieces = new HashMap<>();
+		ArrayList<String> keys = new ArrayList<String>();
+		keys.addAll(lengths.keySet());
+		for(String s : keys)
+		{
+			if(splitter.subcontigMap.containsKey(s))
+			{
+				for(CorrectMisassemblies.ContigBreaker.Subcontig sc : splitter.subcontigMap.get(s))
+				{
+					pieces.put(sc.name, sc);
+				}
+				lengths.remove(s);
+			}
+		}
+		ranges = new HashMap<String, CorrectMisassemblies.ContigBreaker.Subcontig>();
+		for(String s : pieces.keySet())
+		{
+			CorrectMisassemblies.ContigBreaker.Subcontig sc = pieces.get(s);
+			lengths.put(s, sc.endPos - sc.startPos);
+			ranges.put(s, sc);
+		}
+	}
+
+	/*
+	 * The names of all sequences in the store
+	 */
+	Set<String> names()
+	{
+		return lengths.keySet();
+	}
+
+	boolean contains(String name)
+	{
+		return lengths.containsKey(name);
+	}
+
+	int length(String name)
+	{
+		return lengths.get(name);
+	}
+
+	/*
+	 * Gets the sequence with a given name, or null if it is not in the store
+	 * Subcontigs are cut out of their contig each time they are asked for rather than being kept separately
+	 */
+	String get(String name) throws IOException
+	{
+		if(!lengths.containsKey(name))
+		{
+			return null;
+		}
+		CorrectMisassemblies.ContigBreaker.Subcontig sc = ranges.get(name);
+		if(sequences != null)
+		{
+			return sc == null ? sequences.get(name) : sequences.get(sc.oldName).substring(sc.startPos, sc.endPos);
+		}
+		if(sc != null)
+		{
+			return fasta.fetch(sc.oldName, sc.startPos, sc.endPos);
+		}
+		return fasta.fetch(name);
+	}
+
+	void close() throws IOException
+	{
+		if(fasta != null)
+		{
+			fasta.close();
+		}
+	}
+}
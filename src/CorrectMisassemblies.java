@@ -2,12 +2,13 @@
  * Code for correcting misassemblies
  */
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.function.IntUnaryOperator;
 
 /*
  * Module for correcting misassemblies as part of the ultralong read scaffolder
@@ -34,25 +35,30 @@ public class CorrectMisassemblies {
 /*
  * Finds inversions based on alignments of contigs to ultralong reads
  * An inversion is defined as the alignments from a contig changing strand
+ * The read's list of alignments is not modified, so reads can be processed concurrently
+ * Candidates are added to out, with contigs given by their ids in the detector's table
  */
-static ArrayList<NovelAdjacency> findInversions(ArrayList<SortablePafAlignment> alignments)
+static void findInversions(ArrayList<SortablePafAlignment> alignments, int read, HashMap<String, ContigAlignments> contigs, Candidates out)
 {
-	ArrayList<NovelAdjacency> res = new ArrayList<>();
-	
 	int n = alignments.size();
 
-	// Group by contig name, and sort each group by contig start position
+	// Group by contig name, and sort each group by contig start position and then by read position
 	Comparator<SortablePafAlignment> byContigName = new Comparator<SortablePafAlignment>() {
 
 		@Override
 		public int compare(SortablePafAlignment a, SortablePafAlignment b) {
 			if(a.contigName.equals(b.contigName))
 			{
-				return a.contigStart - b.contigStart;
+				if(a.contigStart != b.contigStart)
+				{
+					return a.contigStart - b.contigStart;
+				}
+				return a.compareTo(b);
 			}
 			return a.contigName.compareTo(b.contigName);
 		}
 	};
+	alignments = new ArrayList<SortablePafAlignment>(alignments);
 	Collections.sort(alignments, byContigName);
 	
 	for(int i = 0; i<n; i++)
@@ -78,26 +84,23 @@ static ArrayList<NovelAdjacency> findInversions(ArrayList<SortablePafAlignment>
 				{
 					boolean lastPrefix = last.strand == '-';
 					boolean curPrefix = cur.strand == '+';
-					res.add(new NovelAdjacency(last.contigName, cur.contigName, lastPrefix ? last.contigStart : last.contigEnd, 
-						curPrefix ? cur.contigStart : cur.contigEnd, last.contigLength, cur.contigLength, last.readName, weight, 0));
+					out.add(contigs.get(last.contigName), contigs.get(cur.contigName), lastPrefix ? last.contigStart : last.contigEnd, 
+						curPrefix ? cur.contigStart : cur.contigEnd, read, weight, 0, 1);
 				}
 			}
 		}
 	}
-	
-	return res;
 }
 /*
  * Takes all alignments to a read and looks for evidence of chimeric contigs
  * This is where the middle of one contig should align to a different contig rather than the rest of its given contig
  */
-static ArrayList<NovelAdjacency> findChimeras(ArrayList<SortablePafAlignment> alignments)
+static void findChimeras(ArrayList<SortablePafAlignment> alignments, int read, HashMap<String, ContigAlignments> contigs, Candidates out)
 {
-	ArrayList<NovelAdjacency> res = new ArrayList<NovelAdjacency>();
-	
 	// Combine alignments of the same contig to a single read, but do not filter out invalid ones
-	ArrayList<SortablePafAlignment> compressed = AlignmentGatherer.compress(alignments, false);
-	if(compressed.size() < 2) return res;
+	// Compression sorts the list it is given, so give it a copy to leave the read's list untouched
+	ArrayList<SortablePafAlignment> compressed = AlignmentGatherer.compress(new ArrayList<SortablePafAlignment>(alignments), false);
+	if(compressed.size() < 2) return;
 	SortablePafAlignment last = compressed.get(0);
 	for(int i = 1; i < compressed.size(); i++)
 	{
@@ -131,195 +134,741 @@ static ArrayList<NovelAdjacency> findChimeras(ArrayList<SortablePafAlignment> al
 		// Make sure that there is a chimera and that the alignments don't overlap
 		if((curNonEnd || lastNonEnd) && cur.readStart <= last.readEnd + 1000)
 		{
-			res.add(new NovelAdjacency(last.contigName, cur.contigName, lastPrefix ? last.contigStart : last.contigEnd, 
-					curPrefix ? cur.contigStart : cur.contigEnd, last.contigLength, cur.contigLength, last.readName, 
-					harmonicMean(last.contigEnd - last.contigStart, cur.contigEnd - cur.contigStart), 1));
+			out.add(contigs.get(last.contigName), contigs.get(cur.contigName), lastPrefix ? last.contigStart : last.contigEnd, 
+					curPrefix ? cur.contigStart : cur.contigEnd, read, 
+					harmonicMean(last.contigEnd - last.contigStart, cur.contigEnd - cur.contigStart), 1, 1);
 		}
 		
 		last = cur;
 	}
-	return res;
 }
 /*
  * Find split alignments - this is where a lot of reads have alignments starting or ending at the same location of a contig
  * In this case, it may make sense to break the contig at that position
  * Note that strict thresholds are used here because the alignments are noisy and easily interrupted by repeats
  */
-static ArrayList<NovelAdjacency> findSplitAlignments(HashMap<String, ArrayList<SortablePafAlignment>> byContig)
+static Candidates findSplitAlignments(ArrayList<ContigAlignments> contigs) throws Exception
+{
+	// Each contig is handled independently, so do them in parallel and add their results in order of contig id
+	Candidates[] perContig = new Candidates[contigs.size()];
+	ScaffoldGraph.parallelFor(contigs.size(), i -> {
+		perContig[i] = new Candidates();
+		findSplitAlignments(contigs.get(i), perContig[i]);
+	});
+	Candidates res = new Candidates();
+	for(Candidates c : perContig)
+	{
+		res.addAll(c);
+	}
+	return res;
+}
+
+/*
+ * Finds split alignments in a single contig given all of the alignments to it
+ * Endpoints are taken in the order their alignments were added, and each one joins the nearest existing cluster key within maxEndpointDist
+ * on either side, preferring the one before it on a tie, or else becomes a new key itself
+ * The keys are looked up by binary search in a sorted array of the distinct endpoints, and only keys within maxEndpointDist are looked at
+ */
+static void findSplitAlignments(ContigAlignments als, Candidates out)
 {
 	int maxEndpointDist = 100;
-	ArrayList<NovelAdjacency> res = new ArrayList<>();
 	
-	for(String contigName : byContig.keySet())
+	// Gather the distinct endpoints away from the ends of the contig
+	int[] values = new int[2 * als.n];
+	int n = 0;
+	for(int i = 0; i<als.n; i++)
 	{
-		TreeMap<Integer, Double> endpointWeights = new TreeMap<>();
-		TreeMap<Integer, Integer> endpointFrequency = new TreeMap<>();
-		TreeMap<Integer, String> readSupport = new TreeMap<Integer, String>();
-		ArrayList<SortablePafAlignment> als = byContig.get(contigName);
-		for(SortablePafAlignment spa : als)
+		for(int endpoint : new int[] {als.start[i], als.end[i]})
 		{
-			double curWeight = spa.contigEnd - spa.contigStart;
-			int[] ends = new int[] {spa.contigStart, spa.contigEnd};
-			int contigLength = spa.contigLength;
-			for(int endpoint : ends)
+			if(endpoint < buffer*2 || endpoint + buffer*2 > als.length)
 			{
-				if(endpoint < buffer*2 || endpoint + buffer*2 > contigLength)
-				{
-					continue;
-				}
-				Integer floor = endpointWeights.floorKey(endpoint);
-				Integer ceiling = endpointWeights.ceilingKey(endpoint);
-				int floorDist = floor == null ? (int)1e9 : endpoint - floor;
-				int ceilingDist = ceiling == null ? (int)1e9 : ceiling - endpoint;
-				if(floorDist <= ceilingDist && floorDist < maxEndpointDist)
-				{
-					// Consider this the same as the previous endpoint
-					endpointWeights.put(floor, endpointWeights.get(floor) + curWeight);
-					endpointFrequency.put(floor, 1 + endpointFrequency.get(floor));
-				}
-				else if(ceilingDist < maxEndpointDist)
+				continue;
+			}
+			values[n++] = endpoint;
+		}
+	}
+	Arrays.sort(values, 0, n);
+	int numValues = 0;
+	for(int i = 0; i<n; i++)
+	{
+		if(numValues == 0 || values[i] != values[numValues - 1])
+		{
+			values[numValues++] = values[i];
+		}
+	}
+	
+	// For each distinct endpoint, whether it is a cluster key, and if so the total weight and number of endpoints in its cluster and the read which started it
+	boolean[] isKey = new boolean[numValues];
+	double[] weight = new double[numValues];
+	int[] frequency = new int[numValues], read = new int[numValues];
+	for(int i = 0; i<als.n; i++)
+	{
+		double curWeight = als.end[i] - als.start[i];
+		for(int endpoint : new int[] {als.start[i], als.end[i]})
+		{
+			if(endpoint < buffer*2 || endpoint + buffer*2 > als.length)
+			{
+				continue;
+			}
+			int idx = Arrays.binarySearch(values, 0, numValues, endpoint);
+			int floor = -1, ceiling = -1;
+			for(int j = idx; j >= 0 && endpoint - values[j] < maxEndpointDist; j--)
+			{
+				if(isKey[j])
 				{
-					// Consider this the same as the next endpoint
-					endpointWeights.put(ceiling, endpointWeights.get(ceiling) + curWeight);
-					endpointFrequency.put(ceiling, 1 + endpointFrequency.get(ceiling));
+					floor = j;
+					break;
 				}
-				else
+			}
+			for(int j = idx; j < numValues && values[j] - endpoint < maxEndpointDist; j++)
+			{
+				if(isKey[j])
 				{
-					endpointWeights.put(endpoint, curWeight);
-					endpointFrequency.put(endpoint, 1);
-					readSupport.put(endpoint, spa.readName);
+					ceiling = j;
+					break;
 				}
 			}
-		}
-		for(int endpoint : endpointWeights.keySet())
-		{
-			if(endpointFrequency.get(endpoint) < 5)
+			int floorDist = floor == -1 ? (int)1e9 : endpoint - values[floor];
+			int ceilingDist = ceiling == -1 ? (int)1e9 : values[ceiling] - endpoint;
+			int key = floorDist <= ceilingDist ? floor : ceiling;
+			if(key != -1)
 			{
-				continue;
+				// Consider this the same as the nearest key
+				weight[key] += curWeight;
+				frequency[key]++;
 			}
-			if(endpointWeights.get(endpoint) < 100000)
+			else
 			{
-				continue;
+				isKey[idx] = true;
+				weight[idx] = curWeight;
+				frequency[idx] = 1;
+				read[idx] = als.read[i];
 			}
-			NovelAdjacency toAdd =(new NovelAdjacency(contigName, contigName, endpoint, endpoint, 
-					als.get(0).contigLength, als.get(0).contigLength, readSupport.get(endpoint), 
-					endpointWeights.get(endpoint), 2));
-			toAdd.support = endpointFrequency.get(endpoint);
-			res.add(toAdd);
 		}
 	}
 	
-	return res;
-}
-static boolean check(NovelAdjacency na, HashMap<String, ArrayList<SortablePafAlignment>> byContig)
-{
-	double evidence = 0.0;
-	ArrayList<SortablePafAlignment> contig1aln = byContig.get(na.contig1);
-	for(SortablePafAlignment spa : contig1aln)
+	for(int i = 0; i<numValues; i++)
 	{
-		if(spa.contigStart < na.pos1 - 10000 && spa.contigEnd > na.pos1 + 10000)
+		if(isKey[i] && frequency[i] >= 5 && weight[i] >= 100000)
 		{
-			evidence += harmonicMean(na.pos1 - spa.contigStart, spa.contigEnd - na.pos1);
-		}
-	}
-	ArrayList<SortablePafAlignment> contig2aln = byContig.get(na.contig2);
-	for(SortablePafAlignment spa : contig2aln)
-	{
-		if(spa.contigStart < na.pos2 && spa.contigEnd > na.pos2)
-		{
-			evidence += harmonicMean(na.pos2 - spa.contigStart, spa.contigEnd - na.pos2);
+			out.add(als, als, values[i], values[i], read[i], weight[i], 2, frequency[i]);
 		}
 	}
+}
+/*
+ * The total evidence against a novel adjacency - the alignments which span its position in each contig, weighted by how far they extend on either side
+ */
+static double evidence(NovelAdjacency na, EvidenceIndex index1, EvidenceIndex index2)
+{
+	return index1.spanningEvidence(na.pos1, 10000) + index2.spanningEvidence(na.pos2, 0);
+}
+static boolean check(NovelAdjacency na, double evidence)
+{
 	System.out.println(na.contig1+" "+na.contig2+" "+na.weight+" "+na.pos1+" "+na.pos2+" "+evidence);
 	return evidence < maxEvidence && (evidence * evidenceRatio < na.weight || (na.contig1.equals(na.contig2) && evidence * evidenceRatio < na.weight));
 }
 
 /*
- * Given a list of novel adjacencies, combine those between the same contigs which are at very similar positions
+ * Given a sorted list of candidate novel adjacencies, combine those between the same contigs which are at very similar positions
  * Also, filter out those which have a lot of alignments spanning their supposed split points 
+ * Adjacencies are only combined with others between the same pair of contigs, so each pair is combined and checked in parallel
+ * The candidates are taken in the given order, and only those which are kept are turned into NovelAdjacency objects
  */
-static ArrayList<NovelAdjacency> compressAndFilter(ArrayList<NovelAdjacency> nas, boolean filter, HashMap<String, ArrayList<SortablePafAlignment>> byContig)
+static ArrayList<NovelAdjacency> compressAndFilter(Candidates candidates, int[] order, ArrayList<ContigAlignments> contigs, ArrayList<String> readNames,
+		EvidenceIndex[] index) throws Exception
 {
-	ArrayList<NovelAdjacency> res = new ArrayList<NovelAdjacency>();
-	for(int i = 0; i<nas.size(); i++)
+	// Find where the adjacencies between each pair of contigs start
+	ArrayList<Integer> pairStarts = new ArrayList<Integer>();
+	for(int i = 0; i<order.length; i++)
 	{
-		NovelAdjacency cur = nas.get(i);
-		int j = i+1;
-		int totSupport = nas.get(i).support;
-		while(j < nas.size())
-		{
-			NovelAdjacency next = nas.get(j);
-			if(!next.contig1.equals(cur.contig1)) break;
-			if(!next.contig2.equals(cur.contig2)) break;
-			if(Math.abs(next.pos1 - cur.pos1) > 10000) break;
-			if(Math.abs(next.pos2 - cur.pos2) > 10000) break;
-			cur.weight += next.weight;
-			totSupport += next.support;
-			cur.pos1 = (int)(cur.pos1 * (j-i) + next.pos1) / (j - i + 1);
-			cur.pos2 = (int)(cur.pos2 * (j-i) + next.pos2) / (j - i + 1);
-			j++;
-		}
-		boolean hasSupport = (cur.type == 0 && totSupport >= minInversionSupport) ||
-				(cur.type == 1 && totSupport >= minChimeraSupport) || cur.type == 2;
-		if(!filter || (cur.weight > 20000 && j >= i+3 && check(cur, byContig)))
+		if(i == 0 || candidates.contig1[order[i]] != candidates.contig1[order[i-1]] || candidates.contig2[order[i]] != candidates.contig2[order[i-1]])
 		{
-			res.add(cur);
+			pairStarts.add(i);
 		}
-		else if(hasSupport && check(cur, byContig))
+	}
+	pairStarts.add(order.length);
+	
+	CombinedCandidates[] pairs = new CombinedCandidates[pairStarts.size() - 1];
+	ScaffoldGraph.parallelFor(pairs.length, p -> 
+		pairs[p] = new CombinedCandidates(candidates, order, pairStarts.get(p), pairStarts.get(p+1), contigs, readNames, index));
+	
+	// Decide which to keep in the original order so the output is the same however the work was split
+	ArrayList<NovelAdjacency> res = new ArrayList<NovelAdjacency>();
+	for(CombinedCandidates pair : pairs)
+	{
+		for(int g = 0; g<pair.numRuns; g++)
 		{
-			res.add(cur);
+			NovelAdjacency cur = pair.combined[g];
+			if(cur == null)
+			{
+				continue;
+			}
+			if(cur.weight > 20000 && pair.runLengths[g] >= 3 && check(cur, pair.evidence[g]))
+			{
+				res.add(cur);
+			}
+			else if(hasSupport(cur.type, pair.supports[g]) && check(cur, pair.evidence[g]))
+			{
+				res.add(cur);
+			}
 		}
-		i = j-1;
 	}
 	return res;
 }
-static ArrayList<NovelAdjacency> findMisassemblies(HashMap<String, ArrayList<SortablePafAlignment>> alignmentsPerRead)
+/*
+ * The candidates between one pair of contigs after combining runs of nearby ones,
+ * along with how many were in each run, how many reads supported them, and the evidence against them
+ */
+static class CombinedCandidates
 {
-	HashMap<String, ArrayList<SortablePafAlignment>> byContig = reindex(alignmentsPerRead);
-	ArrayList<NovelAdjacency> corrections = new ArrayList<CorrectMisassemblies.NovelAdjacency>();
+	// The combined adjacency for each of the first numRuns runs, or null if it could not be kept whatever the evidence against it
+	int numRuns;
+	NovelAdjacency[] combined;
+	int[] runLengths, supports;
+	double[] evidence;
+	
+	/*
+	 * Combines the candidates at order[from:to), which must all be between the same pair of contigs
+	 */
+	CombinedCandidates(Candidates c, int[] order, int from, int to, ArrayList<ContigAlignments> contigs, ArrayList<String> readNames, EvidenceIndex[] index)
+	{
+		// There can be at most one run per candidate
+		combined = new NovelAdjacency[to - from];
+		runLengths = new int[to - from];
+		supports = new int[to - from];
+		evidence = new double[to - from];
+		for(int i = from; i<to; i++)
+		{
+			int first = order[i];
+			int pos1 = c.pos1[first], pos2 = c.pos2[first];
+			double weight = c.weight[first];
+			int j = i+1;
+			int totSupport = c.support[first];
+			while(j < to)
+			{
+				int next = order[j];
+				if(Math.abs(c.pos1[next] - pos1) > 10000) break;
+				if(Math.abs(c.pos2[next] - pos2) > 10000) break;
+				weight += c.weight[next];
+				totSupport += c.support[next];
+				pos1 = (int)(pos1 * (j-i) + c.pos1[next]) / (j - i + 1);
+				pos2 = (int)(pos2 * (j-i) + c.pos2[next]) / (j - i + 1);
+				j++;
+			}
+			
+			// Only make an adjacency and look up the evidence against it if it could be kept
+			if((weight > 20000 && j - i >= 3) || hasSupport(c.type[first], totSupport))
+			{
+				ContigAlignments contig1 = contigs.get(c.contig1[first]), contig2 = contigs.get(c.contig2[first]);
+				NovelAdjacency cur = new NovelAdjacency(contig1.name, contig2.name, pos1, pos2, contig1.length, contig2.length, 
+						readNames.get(c.read[first]), weight, c.type[first]);
+				cur.support = c.support[first];
+				combined[numRuns] = cur;
+				evidence[numRuns] = evidence(cur, index[contig1.id], index[contig2.id]);
+			}
+			runLengths[numRuns] = j - i;
+			supports[numRuns] = totSupport;
+			numRuns++;
+			i = j-1;
+		}
+	}
+}
+static boolean hasSupport(int type, int totSupport)
+{
+	return (type == 0 && totSupport >= minInversionSupport) ||
+			(type == 1 && totSupport >= minChimeraSupport) || type == 2;
+}
+static ArrayList<NovelAdjacency> findMisassemblies(HashMap<String, ArrayList<SortablePafAlignment>> alignmentsPerRead) throws Exception
+{
+	Detector detector = new Detector();
 	for(String s : alignmentsPerRead.keySet())
 	{
-		ArrayList<CorrectMisassemblies.NovelAdjacency> tmp = 
-				CorrectMisassemblies.findChimeras(alignmentsPerRead.get(s));
+		detector.addRead(alignmentsPerRead.get(s));
+	}
+	return detector.finish();
+}
+/*
+ * Finds misassemblies from the alignments in a file which has all of the alignments of each read together, reading one read at a time
+ */
+static ArrayList<NovelAdjacency> findMisassemblies(String pafFn) throws Exception
+{
+	Detector detector = new Detector();
+	ReadGroupedPaf paf = new ReadGroupedPaf(pafFn);
+	ArrayList<SortablePafAlignment> alignments;
+	while((alignments = paf.next()) != null)
+	{
+		detector.addRead(alignments);
+	}
+	paf.close();
+	return detector.finish();
+}
+/*
+ * Looks for misassemblies in the alignments of one read at a time, so the alignments themselves do not all need to be kept
+ * Chimeras and inversions only depend on a single read, so they are found in parallel batches of reads as they come in
+ * Split alignments and the evidence against each candidate depend on all of the alignments to a contig, so only the
+ * coordinates of those are kept, and they are used once every read has been added
+ */
+static class Detector
+{
+	// Reads are processed in batches of this many
+	static final int BATCH_SIZE = 1 << 14;
+	
+	// The reads in the order they were added
+	HashMap<String, Integer> readIds;
+	ArrayList<String> readNames;
+	
+	// The alignments to each contig, also listed by contig id
+	HashMap<String, ContigAlignments> byContig;
+	ArrayList<ContigAlignments> contigs;
+	
+	// The candidate misassemblies found so far, in the order of the reads they were found in
+	Candidates candidates;
+	
+	// Reads which have been added but not yet searched for chimeras and inversions
+	ArrayList<ArrayList<SortablePafAlignment>> pending;
+	int firstPending;
+	
+	Detector()
+	{
+		readIds = new HashMap<String, Integer>();
+		readNames = new ArrayList<String>();
+		byContig = new HashMap<String, ContigAlignments>();
+		contigs = new ArrayList<ContigAlignments>();
+		candidates = new Candidates();
+		pending = new ArrayList<ArrayList<SortablePafAlignment>>();
+	}
+	
+	/*
+	 * Adds all of the alignments of one read, which the detector does not modify or hold on to once its batch is done
+	 */
+	void addRead(ArrayList<SortablePafAlignment> alignments) throws Exception
+	{
+		String readName = alignments.get(0).readName;
+		int id = readNames.size();
+		readIds.put(readName, id);
+		readNames.add(readName);
+		for(SortablePafAlignment spa : alignments)
+		{
+			ContigAlignments ca = byContig.get(spa.contigName);
+			if(ca == null)
+			{
+				ca = new ContigAlignments(contigs.size(), spa.contigName, spa.contigLength);
+				byContig.put(spa.contigName, ca);
+				contigs.add(ca);
+			}
+			ca.add(spa.contigStart, spa.contigEnd, id);
+		}
+		if(pending.isEmpty())
+		{
+			firstPending = id;
+		}
+		pending.add(alignments);
+		if(pending.size() == BATCH_SIZE)
+		{
+			flush();
+		}
+	}
+	
+	/*
+	 * Looks for chimeras and inversions in the pending reads, in parallel over ranges of them
+	 * Each range fills its own buffer, and the buffers are added in order so candidates stay in the order of their reads
+	 */
+	void flush() throws Exception
+	{
+		int numChunks = Math.min(pending.size(), 4 * Settings.THREADS);
+		Candidates[] found = new Candidates[numChunks];
+		ScaffoldGraph.parallelFor(numChunks, c -> {
+			found[c] = new Candidates();
+			for(int i = (int)((long)pending.size() * c / numChunks); i < (int)((long)pending.size() * (c+1) / numChunks); i++)
+			{
+				findChimeras(pending.get(i), firstPending + i, byContig, found[c]);
+				findInversions(pending.get(i), firstPending + i, byContig, found[c]);
+			}
+		});
+		for(Candidates c : found)
+		{
+			candidates.addAll(c);
+		}
+		pending.clear();
+	}
+	
+	/*
+	 * Finds split alignments, and then combines and filters all of the candidates once every read has been added
+	 * Everything is ordered as if the reads were gathered in the order a map from read to alignments would give them in, 
+	 * so the result is the same whether the reads came from such a map or straight from a file
+	 */
+	ArrayList<NovelAdjacency> finish() throws Exception
+	{
+		flush();
+		int numReads = readNames.size();
+		int[] rank = new int[numReads];
+		int r = 0;
+		for(String s : readIds.keySet())
+		{
+			rank[readIds.get(s)] = r++;
+		}
+		ScaffoldGraph.parallelFor(contigs.size(), i -> contigs.get(i).sortByRead(rank));
 		
-		ArrayList<NovelAdjacency> inv = findInversions(alignmentsPerRead.get(s));
-		tmp.addAll(inv);
+		// Split alignments come after everything else, with the read of each being the one whose endpoint started its cluster
+		int numReadCandidates = candidates.n;
+		candidates.addAll(findSplitAlignments(contigs));
 		
-		if(tmp.size() > 0)
+		// Rank the contigs by name so that candidates are sorted by contig names, then by the position in the first contig
+		ArrayList<ContigAlignments> byName = new ArrayList<ContigAlignments>(contigs);
+		byName.sort((a, b) -> a.name.compareTo(b.name));
+		int[] nameRank = new int[contigs.size()];
+		for(int i = 0; i<byName.size(); i++)
 		{
-			for(CorrectMisassemblies.NovelAdjacency na : tmp)
+			nameRank[byName.get(i).id] = i;
+		}
+		
+		// Sort stably one key at a time starting with the least significant, which is the rank of the read the candidate came from
+		int[] order = new int[candidates.n];
+		for(int i = 0; i<order.length; i++)
+		{
+			order[i] = i;
+		}
+		Candidates c = candidates;
+		order = sortBy(order, i -> i < numReadCandidates ? rank[c.read[i]] : numReads);
+		order = sortBy(order, i -> c.pos1[i]);
+		order = sortBy(order, i -> nameRank[c.contig2[i]]);
+		order = sortBy(order, i -> nameRank[c.contig1[i]]);
+		
+		// Index the alignments of every contig involved in a possible misassembly
+		boolean[] involved = new boolean[contigs.size()];
+		for(int i = 0; i<c.n; i++)
+		{
+			involved[c.contig1[i]] = true;
+			involved[c.contig2[i]] = true;
+		}
+		EvidenceIndex[] index = new EvidenceIndex[contigs.size()];
+		ScaffoldGraph.parallelFor(contigs.size(), i -> {
+			if(involved[i])
 			{
-				corrections.add(na);
+				index[i] = new EvidenceIndex(contigs.get(i));
 			}
+		});
+		
+		return compressAndFilter(c, order, contigs, readNames, index);
+	}
+	
+	/*
+	 * Stably sorts a list of candidate indices by a non-negative key of each candidate
+	 */
+	static int[] sortBy(int[] order, IntUnaryOperator key)
+	{
+		long[] keys = new long[order.length];
+		for(int k = 0; k<order.length; k++)
+		{
+			keys[k] = ((long)key.applyAsInt(order[k]) << 32) | k;
+		}
+		Arrays.parallelSort(keys);
+		int[] res = new int[order.length];
+		for(int k = 0; k<order.length; k++)
+		{
+			res[k] = order[(int)keys[k]];
+		}
+		return res;
+	}
+}
+/*
+ * Candidate misassemblies in growable parallel arrays, with contigs and reads given by their ids in the detector
+ * For split alignments the read is the one whose endpoint started the cluster, and the support is the number of endpoints in the cluster
+ */
+static class Candidates
+{
+	int n;
+	int[] contig1, contig2, pos1, pos2, read, type, support;
+	double[] weight;
+	
+	Candidates()
+	{
+		contig1 = new int[4];
+		contig2 = new int[4];
+		pos1 = new int[4];
+		pos2 = new int[4];
+		read = new int[4];
+		type = new int[4];
+		support = new int[4];
+		weight = new double[4];
+	}
+	
+	void ensureCapacity(int size)
+	{
+		if(size > contig1.length)
+		{
+			int cap = Math.max(size, 2 * contig1.length);
+			contig1 = Arrays.copyOf(contig1, cap);
+			contig2 = Arrays.copyOf(contig2, cap);
+			pos1 = Arrays.copyOf(pos1, cap);
+			pos2 = Arrays.copyOf(pos2, cap);
+			read = Arrays.copyOf(read, cap);
+			type = Arrays.copyOf(type, cap);
+			support = Arrays.copyOf(support, cap);
+			weight = Arrays.copyOf(weight, cap);
+		}
+	}
+	
+	/*
+	 * Adds a candidate, putting the contigs in the same order a NovelAdjacency would
+	 */
+	void add(ContigAlignments c1, ContigAlignments c2, int p1, int p2, int r, double w, int t, int s)
+	{
+		if(c1.name.compareTo(c2.name) > 0 || (c1 == c2 && p1 > p2))
+		{
+			ContigAlignments tmp = c1;
+			c1 = c2;
+			c2 = tmp;
+			int tmppos = p1;
+			p1 = p2;
+			p2 = tmppos;
+		}
+		ensureCapacity(n+1);
+		contig1[n] = c1.id;
+		contig2[n] = c2.id;
+		pos1[n] = p1;
+		pos2[n] = p2;
+		read[n] = r;
+		weight[n] = w;
+		type[n] = t;
+		support[n] = s;
+		n++;
+	}
+	
+	void addAll(Candidates o)
+	{
+		ensureCapacity(n + o.n);
+		System.arraycopy(o.contig1, 0, contig1, n, o.n);
+		System.arraycopy(o.contig2, 0, contig2, n, o.n);
+		System.arraycopy(o.pos1, 0, pos1, n, o.n);
+		System.arraycopy(o.pos2, 0, pos2, n, o.n);
+		System.arraycopy(o.read, 0, read, n, o.n);
+		System.arraycopy(o.weight, 0, weight, n, o.n);
+		System.arraycopy(o.type, 0, type, n, o.n);
+		System.arraycopy(o.support, 0, support, n, o.n);
+		n += o.n;
+	}
+}
+/*
+ * The coordinates of the alignments to one contig and the ids of the reads they came from, in growable parallel arrays
+ */
+static class ContigAlignments
+{
+	int id, n, length;
+	String name;
+	int[] start, end, read;
+	
+	ContigAlignments(int id, String name, int length)
+	{
+		this.id = id;
+		this.name = name;
+		this.length = length;
+		start = new int[4];
+		end = new int[4];
+		read = new int[4];
+	}
+	
+	void add(int s, int e, int r)
+	{
+		if(n == start.length)
+		{
+			start = Arrays.copyOf(start, 2 * n);
+			end = Arrays.copyOf(end, 2 * n);
+			read = Arrays.copyOf(read, 2 * n);
 		}
+		start[n] = s;
+		end[n] = e;
+		read[n] = r;
+		n++;
 	}
-	ArrayList<NovelAdjacency> splitAlignments = findSplitAlignments(byContig);
-	corrections.addAll(splitAlignments);
-	Collections.sort(corrections);
 	
-	return compressAndFilter(corrections, true, byContig);
+	/*
+	 * Stably reorders the alignments by the rank of the read each came from
+	 */
+	void sortByRead(int[] rank)
+	{
+		long[] keys = new long[n];
+		for(int i = 0; i<n; i++)
+		{
+			keys[i] = ((long)rank[read[i]] << 32) | i;
+		}
+		Arrays.sort(keys);
+		int[] newStart = new int[n], newEnd = new int[n], newRead = new int[n];
+		for(int i = 0; i<n; i++)
+		{
+			int j = (int)keys[i];
+			newStart[i] = start[j];
+			newEnd[i] = end[j];
+			newRead[i] = read[j];
+		}
+		start = newStart;
+		end = newEnd;
+		read = newRead;
+	}
 }
 static double harmonicMean(double x, double y)
 {
 	return 2.0 * x * y / (x+y); 
 }
 /*
- * Take a set of alignments grouped by read and instead group them by contig
+ * A static index of the intervals of a contig covered by alignments, for finding the alignments which span a position
+ * This is an implicit interval tree as in cgranges: the intervals are sorted by start, and the sorted array is treated as a binary search tree
+ * with the nodes at level k at the indices whose lowest k bits are all 1, and each node holding the largest end in its subtree
  */
-static HashMap<String, ArrayList<SortablePafAlignment>> reindex(HashMap<String, ArrayList<SortablePafAlignment>> alignments)
+static class EvidenceIndex
 {
-	HashMap<String, ArrayList<SortablePafAlignment>> res = new HashMap<>();
+	int n;
 	
-	for(String s : alignments.keySet())
+	// The intervals sorted by start, and the largest end in the subtree of each
+	int[] start, end, maxEnd;
+	
+	// The level of the root of the tree
+	int rootLevel;
+	
+	// The position of each interval in the list it came from, so evidence can be summed in the same order as going through the list
+	int[] listIndex;
+	
+	EvidenceIndex(ContigAlignments alignments)
 	{
-		ArrayList<SortablePafAlignment> curList = alignments.get(s);
-		for(SortablePafAlignment spa : curList)
+		n = alignments.n;
+		long[] keys = new long[n];
+		for(int i = 0; i<n; i++)
+		{
+			keys[i] = ((long)alignments.start[i] << 32) | i;
+		}
+		Arrays.sort(keys);
+		start = new int[n];
+		end = new int[n];
+		listIndex = new int[n];
+		for(int i = 0; i<n; i++)
 		{
-			String newKey = spa.contigName;
-			ReadUtils.addToMap(res, newKey, spa);
+			listIndex[i] = (int)keys[i];
+			start[i] = alignments.start[listIndex[i]];
+			end[i] = alignments.end[listIndex[i]];
 		}
+		
+		// Fill in the largest ends from the leaves up, where the rightmost node at each level may have a missing right subtree
+		// whose largest end is that of the rightmost node at the level below
+		maxEnd = new int[n];
+		int lastIdx = 0, last = 0;
+		for(int i = 0; i<n; i += 2)
+		{
+			lastIdx = i;
+			last = maxEnd[i] = end[i];
+		}
+		int k;
+		for(k = 1; (1L << k) <= n; k++)
+		{
+			int x = 1 << (k-1), first = (x << 1) - 1, step = x << 2;
+			for(long i = first; i < n; i += step)
+			{
+				int left = maxEnd[(int)i - x];
+				int right = i + x < n ? maxEnd[(int)i + x] : last;
+				maxEnd[(int)i] = Math.max(end[(int)i], Math.max(left, right));
+			}
+			lastIdx = ((lastIdx >> k) & 1) == 1 ? lastIdx - x : lastIdx + x;
+			if(lastIdx < n && maxEnd[lastIdx] > last)
+			{
+				last = maxEnd[lastIdx];
+			}
+		}
+		rootLevel = k - 1;
+	}
+	
+	/*
+	 * The total evidence from alignments which extend more than margin past a position on both sides,
+	 * with each alignment weighted by the harmonic mean of how far it extends to the left and right of the position
+	 */
+	double spanningEvidence(int pos, int margin)
+	{
+		int[] spanning = getContaining(pos - margin, pos + margin);
+		double res = 0;
+		for(int i : spanning)
+		{
+			res += harmonicMean(pos - start[i], end[i] - pos);
+		}
+		return res;
+	}
+	
+	/*
+	 * Gets the intervals with start < from and end > to, in the order they were in the original list
+	 * This is an overlap query for [to, from) - a node's subtree is only searched if its largest end is past to,
+	 * and the search stops moving right once starts reach from
+	 */
+	int[] getContaining(int from, int to)
+	{
+		if(n == 0)
+		{
+			return new int[0];
+		}
+		int[] res = new int[16];
+		int size = 0;
+		
+		// Each stack entry is a node, its level, and whether its left subtree has been searched
+		int[] stackNode = new int[64], stackLevel = new int[64];
+		boolean[] stackLeftDone = new boolean[64];
+		int top = 0;
+		stackNode[top] = (1 << rootLevel) - 1;
+		stackLevel[top] = rootLevel;
+		stackLeftDone[top++] = false;
+		while(top > 0)
+		{
+			top--;
+			int node = stackNode[top], level = stackLevel[top];
+			boolean leftDone = stackLeftDone[top];
+			if(level <= 3)
+			{
+				// Small subtrees are scanned directly
+				int lo = node >> level << level, hi = (int)Math.min(n, lo + (1L << (level + 1)) - 1);
+				for(int i = lo; i < hi && start[i] < from; i++)
+				{
+					if(end[i] > to)
+					{
+						if(size == res.length) res = Arrays.copyOf(res, 2 * size);
+						res[size++] = i;
+					}
+				}
+			}
+			else if(!leftDone)
+			{
+				int left = node - (1 << (level - 1));
+				stackNode[top] = node;
+				stackLevel[top] = level;
+				stackLeftDone[top++] = true;
+				if(left >= n || maxEnd[left] > to)
+				{
+					stackNode[top] = left;
+					stackLevel[top] = level - 1;
+					stackLeftDone[top++] = false;
+				}
+			}
+			else if(node < n && start[node] < from)
+			{
+				if(end[node] > to)
+				{
+					if(size == res.length) res = Arrays.copyOf(res, 2 * size);
+					res[size++] = node;
+				}
+				stackNode[top] = node + (1 << (level - 1));
+				stackLevel[top] = level - 1;
+				stackLeftDone[top++] = false;
+			}
+		}
+		
+		// Put the intervals back in list order
+		long[] keys = new long[size];
+		for(int i = 0; i<size; i++)
+		{
+			keys[i] = ((long)listIndex[res[i]] << 32) | res[i];
+		}
+		Arrays.sort(keys);
+		int[] ordered = new int[size];
+		for(int i = 0; i<size; i++)
+		{
+			ordered[i] = (int)keys[i];
+		}
+		return ordered;
 	}
-	return res;
 }
 /*
  * A novel adjacency (or misassembly) is a point or pair of points where an existing assembly should be broken
@@ -384,20 +933,24 @@ static class NovelAdjacency implements Comparable<NovelAdjacency>
 }
 static HashMap<String, ArrayList<SortablePafAlignment>> remapAll(ContigBreaker splitter, HashMap<String, ArrayList<SortablePafAlignment>> alignmentsPerRead)
 {
-	HashMap<String, ArrayList<SortablePafAlignment>> res = new HashMap<>();
-	for(String readName : alignmentsPerRead.keySet())
+	// Alignments to contigs which were not broken are left alone, so there is nothing to do without any breaks
+	if(splitter.subcontigMap.isEmpty())
 	{
-		for(SortablePafAlignment spa : alignmentsPerRead.get(readName))
+		return alignmentsPerRead;
+	}
+	
+	// Removing entries keeps the iteration order of the rest of the map the same
+	Iterator<Map.Entry<String, ArrayList<SortablePafAlignment>>> it = alignmentsPerRead.entrySet().iterator();
+	while(it.hasNext())
+	{
+		ArrayList<SortablePafAlignment> alignments = it.next().getValue();
+		alignments.removeIf(spa -> !splitter.remap(spa));
+		if(alignments.isEmpty())
 		{
-			SortablePafAlignment cur = splitter.remap(spa);
-			if(cur == null)
-			{
-				continue;
-			}
-			ReadUtils.addToMap(res, readName, cur);
+			it.remove();
 		}
 	}
-	return res;
+	return alignmentsPerRead;
 }
 /*
  * Handling information for breaking contigs in light of misassemblies
@@ -405,17 +958,19 @@ static HashMap<String, ArrayList<SortablePafAlignment>> remapAll(ContigBreaker s
 static class ContigBreaker
 {
 	HashMap<String, ArrayList<Subcontig>> subcontigMap;
+	
+	// For each broken contig, where each of its subcontigs ends, in increasing order
+	HashMap<String, int[]> subcontigEnds;
 	HashMap<String, ArrayList<Integer>> breakPositionMap;
 	HashMap<String, Integer> lengthMap;
-	HashMap<String, String> sequenceMap;
 	HashMap<String, String> sourceMap;
 	int numBreaks;
 	ContigBreaker(ArrayList<NovelAdjacency> nas, HashSet<String> contigNames)
 	{
 		subcontigMap = new HashMap<>();
+		subcontigEnds = new HashMap<>();
 		breakPositionMap = new HashMap<>();
 		lengthMap = new HashMap<>();
-		sequenceMap = new HashMap<>();
 		sourceMap = new HashMap<>();
 		for(NovelAdjacency na : nas)
 		{
@@ -445,44 +1000,55 @@ static class ContigBreaker
 				sourceMap.put(sc.name, contigName);
 			}
 			subcontigMap.put(contigName, scs);
-		}
-	}
-	boolean breakSequence(String contigName, String sequence)
-	{
-		if(subcontigMap.containsKey(contigName))
-		{
-			ArrayList<Subcontig> scs = subcontigMap.get(contigName);
-			for(Subcontig sc : scs)
+			int[] ends = new int[scs.size()];
+			for(int i = 0; i<ends.length; i++)
 			{
-				sequenceMap.put(sc.name, sequence.substring(sc.startPos, sc.endPos));
+				ends[i] = scs.get(i).endPos;
 			}
-			return true;
+			subcontigEnds.put(contigName, ends);
 		}
-		return false;
 	}
-	SortablePafAlignment remap(SortablePafAlignment old)
+	/*
+	 * Moves an alignment to a broken contig onto the subcontig containing it, allowing it to hang over the ends by up to the buffer
+	 * Returns false if no subcontig contains it, and otherwise updates the alignment in place
+	 */
+	boolean remap(SortablePafAlignment spa)
 	{
-		SortablePafAlignment res = old.copy();
-		if(!subcontigMap.containsKey(old.contigName))
+		int[] ends = subcontigEnds.get(spa.contigName);
+		if(ends == null)
 		{
-			return res;
+			return true;
 		}
-		ArrayList<Subcontig> scs = subcontigMap.get(old.contigName);
-		for(int i = 0; i<scs.size(); i++)
+		
+		// The only subcontig which can contain the alignment is the first one which ends after its end minus the buffer
+		int lo = 0, hi = ends.length;
+		while(lo < hi)
 		{
-			Subcontig sc = scs.get(i);
-			boolean afterStart = old.contigStart > sc.startPos - buffer;
-			boolean beforeEnd = old.contigEnd < sc.endPos + buffer;
-			if(afterStart && beforeEnd)
+			int mid = (lo + hi) / 2;
+			if(ends[mid] > spa.contigEnd - buffer)
 			{
-				res.contigName = sc.name;
-				res.contigLength = sc.endPos - sc.startPos;
-				res.contigStart = Math.min(res.contigLength, Math.max(1, old.contigStart - sc.startPos));
-				res.contigEnd = Math.min(sc.endPos, old.contigEnd) - sc.startPos;
-				return res;
+				hi = mid;
 			}
+			else
+			{
+				lo = mid + 1;
+			}
+		}
+		if(lo == ends.length)
+		{
+			return false;
+		}
+		Subcontig sc = subcontigMap.get(spa.contigName).get(lo);
+		if(spa.contigStart <= sc.startPos - buffer)
+		{
+			return false;
 		}
-		return null;
+		spa.contigName = sc.name;
+		spa.contigLength = sc.endPos - sc.startPos;
+		int oldStart = spa.contigStart;
+		spa.contigStart = Math.min(spa.contigLength, Math.max(1, oldStart - sc.startPos));
+		spa.contigEnd = Math.min(sc.endPos, spa.contigEnd) - sc.startPos;
+		return true;
 	}
 	static ArrayList<Integer> filterBreaks(ArrayList<Integer> breaks, int length)
 	{
@@ -516,90 +1082,53 @@ static class ContigBreaker
 		}
 		return res;
 	}
-	@SuppressWarnings("resource")
+	/*
+	 * Writes the whole assembly with broken contigs replaced by their subcontigs, reading from the indexed FASTA file
+	 * The sequences of contigs which were not broken are copied straight from the input file to the output without passing through memory
+	 */
 	void outputBrokenAssembly(String fn, String ofn) throws IOException
 	{
-		BufferedReader br = new BufferedReader(new FileReader(new File(fn)));
-		PrintWriter out = new PrintWriter(new File(ofn));
-		
-		String contigName = br.readLine().split(" ")[0].substring(1);
-		StringBuilder seq = new StringBuilder("");
-		
-		while(true)
-		{
-			try {
-				String line = br.readLine();
-				if(line.charAt(0) == '>')
+		IndexedFasta fasta = new IndexedFasta(fn);
+		FileChannel out = new FileOutputStream(ofn).getChannel();
+		try {
+			for(IndexedFasta.Entry e : fasta.entries)
+			{
+				if(subcontigMap.containsKey(e.name))
+				{
+					for(Subcontig sc : subcontigMap.get(e.name))
+					{
+						write(out, ">" + sc.name + "\n" + fasta.fetch(e, sc.startPos, sc.endPos) + "\n");
+					}
+				}
+				else if(fasta.canTransfer(e))
 				{
-					// process last read
-					print(contigName, seq.toString(), out);
-					seq = new StringBuilder("");
-					// new read name
-					contigName = line.split(" ")[0].substring(1);
+					write(out, ">" + e.name + "\n");
+					fasta.transferTo(e, out);
+					write(out, "\n");
 				}
 				else
 				{
-					seq.append(line);
+					write(out, ">" + e.name + "\n" + fasta.fetch(e, 0, e.length) + "\n");
 				}
-			} catch(Exception e) {
-				break;
 			}
+		} finally {
+			out.close();
+			fasta.close();
 		}
-		print(contigName, seq.toString(), out);
-		out.close();
 	}
-	void print(String contigName, String seq, PrintWriter out)
+	static void write(FileChannel out, String s) throws IOException
 	{
-		if(breakSequence(contigName, seq))
+		ByteBuffer buf = ByteBuffer.wrap(s.getBytes(StandardCharsets.ISO_8859_1));
+		while(buf.hasRemaining())
 		{
-			ArrayList<Subcontig> scs = subcontigMap.get(contigName);
-			for(Subcontig sc : scs)
-			{
-				out.println(">"+sc.name+"\n"+sequenceMap.get(sc.name));
-			}
-		}
-		else
-		{
-			out.println(">"+contigName+"\n"+seq);
+			out.write(buf);
 		}
-		
 	}
-	@SuppressWarnings("resource")
 	static HashMap<String, String> getFastaMap(String fn, HashSet<String> names) throws IOException
 	{
-		HashMap<String, String> res = new HashMap<String, String>();
-		BufferedReader br = new BufferedReader(new FileReader(new File(fn)));
-		String readName = br.readLine().split(" ")[0].substring(1);
-		StringBuilder seq = new StringBuilder("");
-		boolean useful = names.contains(readName);
-		while(true)
-		{
-			try {
-				String line = br.readLine();
-				if(line.charAt(0) == '>')
-				{
-					// process last read
-					if(useful)
-					{
-						res.put(readName, seq.toString());
-						seq = new StringBuilder("");
-					}
-					// new read name
-					readName = line.split(" ")[0].substring(1);
-					useful = names.contains(readName);
-				}
-				else if(useful)
-				{
-					seq.append(line);
-				}
-			} catch(Exception e) {
-				break;
-			}
-		}
-		if(useful)
-		{
-			res.put(readName, seq.toString());
-		}
+		IndexedFasta fasta = new IndexedFasta(fn);
+		HashMap<String, String> res = fasta.getSequences(names);
+		fasta.close();
 		return res;
 	}
 	static class Subcontig
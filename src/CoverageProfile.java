@@ -0,0 +1,276 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+/*
+ * The coverage of every contig by read alignments, binned at a fixed resolution
+ * A bin's coverage is the number of alignments overlapping it, or if weighted the number of aligned bases which fall in it
+ * It is built in one pass over the alignments, adding each one to a difference array of its contig, and each contig then keeps
+ * cumulative sums of its bins so that both point and range queries take constant time
+ *
+ * Layout of the binary file: magic, a fingerprint of the alignments file and of the parameters used,
+ *   then the name, length, and bin coverages of each contig
+ */
+public class CoverageProfile {
+
+	// "GRFTCOV2"
+	static final long MAGIC = 0x47524654434F5632L;
+
+	int resolution;
+	boolean weighted;
+
+	// For each contig, its length and the total coverage of its first b bins at index b
+	HashMap<String, Integer> lengths;
+	HashMap<String, long[]> cumulative;
+
+	CoverageProfile(int resolution, boolean weighted)
+	{
+		this.resolution = resolution;
+		this.weighted = weighted;
+		lengths = new HashMap<String, Integer>();
+		cumulative = new HashMap<String, long[]>();
+	}
+
+	/*
+	 * Adds the alignments of one read to the difference arrays of their contigs
+	 * Once every alignment has been added, finish() needs to be called before the profile is used
+	 */
+	void add(ArrayList<SortablePafAlignment> alignments)
+	{
+		for(SortablePafAlignment spa : alignments)
+		{
+			long[] diff = cumulative.get(spa.contigName);
+			if(diff == null)
+			{
+				lengths.put(spa.contigName, spa.contigLength);
+				diff = new long[numBins(spa.contigLength) + 1];
+				cumulative.put(spa.contigName, diff);
+			}
+			if(weighted)
+			{
+				addBases(diff, Math.max(0, Math.min(spa.contigStart, spa.contigLength)), Math.min(spa.contigEnd, spa.contigLength));
+				continue;
+			}
+			int from = Math.max(0, Math.min(spa.contigStart, spa.contigLength - 1)) / resolution;
+			int to = Math.max(from, Math.min(spa.contigEnd - 1, spa.contigLength - 1) / resolution) + 1;
+			diff[from]++;
+			diff[to]--;
+		}
+	}
+
+	/*
+	 * Adds the bases in [start, end) of a contig to the difference array of its bins
+	 * The first and last bins get exactly the bases they overlap, and every bin between them is fully covered
+	 */
+	void addBases(long[] diff, int start, int end)
+	{
+		if(end <= start)
+		{
+			return;
+		}
+		int first = start / resolution, last = (end - 1) / resolution;
+		if(first == last)
+		{
+			diff[first] += end - start;
+			diff[first+1] -= end - start;
+			return;
+		}
+		long firstBases = (long)(first + 1) * resolution - start, lastBases = end - (long)last * resolution;
+		diff[first] += firstBases;
+		diff[first+1] += resolution - firstBases;
+		diff[last] += lastBases - resolution;
+		diff[last+1] -= lastBases;
+	}
+
+	/*
+	 * Turns the differences into bin coverages and then into cumulative sums of them
+	 */
+	void finish()
+	{
+		for(long[] a : cumulative.values())
+		{
+			long coverage = 0, total = 0;
+			for(int b = 0; b<a.length; b++)
+			{
+				coverage += a[b];
+				a[b] = total;
+				total += coverage;
+			}
+		}
+	}
+
+	int numBins(int length)
+	{
+		return Math.max(1, (length + resolution - 1) / resolution);
+	}
+
+	boolean contains(String contig)
+	{
+		return cumulative.containsKey(contig);
+	}
+
+	/*
+	 * The coverage of the bin containing a position of a contig, or 0 if no alignments involve the contig
+	 */
+	long coverage(String contig, int pos)
+	{
+		long[] a = cumulative.get(contig);
+		if(a == null)
+		{
+			return 0;
+		}
+		int b = Math.max(0, Math.min(pos / resolution, a.length - 2));
+		return a[b+1] - a[b];
+	}
+
+	/*
+	 * The mean coverage of the bins overlapping positions [from, to) of a contig
+	 */
+	double meanCoverage(String contig, int from, int to)
+	{
+		long[] a = cumulative.get(contig);
+		if(a == null)
+		{
+			return 0;
+		}
+		int first = Math.max(0, Math.min(from / resolution, a.length - 2));
+		int last = Math.max(first, Math.min((to - 1) / resolution, a.length - 2));
+		return (double)(a[last+1] - a[first]) / (last - first + 1);
+	}
+
+	/*
+	 * Writes the profile in bedGraph format, with contigs in name order and adjacent bins of equal coverage merged
+	 * Bins with no coverage are left out
+	 */
+	void writeBedGraph(String fn) throws IOException
+	{
+		PrintWriter out = new PrintWriter(new File(fn));
+		out.println("track type=bedGraph name=\"coverage\" description=\"" + (weighted ? "Aligned bases" : "Alignments") + " per " + resolution + "bp bin\"");
+		ArrayList<String> contigs = new ArrayList<String>(cumulative.keySet());
+		Collections.sort(contigs);
+		for(String contig : contigs)
+		{
+			long[] a = cumulative.get(contig);
+			int length = lengths.get(contig);
+			int runStart = 0;
+			for(int b = 1; b <= a.length - 1; b++)
+			{
+				long coverage = a[runStart+1] - a[runStart];
+				if(b < a.length - 1 && a[b+1] - a[b] == coverage)
+				{
+					continue;
+				}
+				if(coverage != 0)
+				{
+					out.println(contig + "\t" + runStart * resolution + "\t" + Math.min(length, b * resolution) + "\t" + coverage);
+				}
+				runStart = b;
+			}
+		}
+		out.close();
+	}
+
+	/*
+	 * Writes the profile to a binary file along with the alignments file and parameters it was built from
+	 * It is written to a temporary file which is only moved into place once it is complete
+	 */
+	void write(String fn, String sourceFn) throws IOException
+	{
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fn + ".tmp"), 1 << 20));
+		out.writeLong(MAGIC);
+		File source = new File(sourceFn);
+		out.writeUTF(source.getAbsolutePath());
+		out.writeLong(source.length());
+		out.writeLong(source.lastModified());
+		for(int x : parameters(resolution, weighted))
+		{
+			out.writeInt(x);
+		}
+		out.writeInt(cumulative.size());
+		for(String contig : cumulative.keySet())
+		{
+			long[] a = cumulative.get(contig);
+			out.writeUTF(contig);
+			out.writeInt(lengths.get(contig));
+			for(int b = 0; b<a.length - 1; b++)
+			{
+				out.writeLong(a[b+1] - a[b]);
+			}
+		}
+		out.close();
+		Files.move(new File(fn + ".tmp").toPath(), new File(fn).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/*
+	 * The parameters which change the profile built from a given alignments file
+	 */
+	static int[] parameters(int resolution, boolean weighted)
+	{
+		return new int[] {resolution, weighted ? 1 : 0, Settings.MIN_QUALITY, Settings.MIN_ALIGNMENT_LENGTH};
+	}
+
+	/*
+	 * Reads a profile written by write()
+	 * Returns null if the file is missing or unreadable, or if it was made from a different alignments file or with different parameters
+	 */
+	static CoverageProfile read(String fn, String sourceFn, int resolution, boolean weighted)
+	{
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fn), 1 << 20));
+			try {
+				if(in.readLong() != MAGIC)
+				{
+					System.err.println("Coverage profile " + fn + " is not in the current format");
+					return null;
+				}
+				File source = new File(sourceFn);
+				String sourcePath = in.readUTF();
+				long sourceLength = in.readLong(), sourceModified = in.readLong();
+				if(!sourcePath.equals(source.getAbsolutePath()) || sourceLength != source.length() || sourceModified != source.lastModified())
+				{
+					System.err.println("Coverage profile " + fn + " is stale: " + sourceFn + " has changed since it was written");
+					return null;
+				}
+				for(int x : parameters(resolution, weighted))
+				{
+					if(in.readInt() != x)
+					{
+						System.err.println("Coverage profile " + fn + " was made with different parameters");
+						return null;
+					}
+				}
+				CoverageProfile res = new CoverageProfile(resolution, weighted);
+				int n = in.readInt();
+				for(int i = 0; i<n; i++)
+				{
+					String contig = in.readUTF();
+					int length = in.readInt();
+					long[] a = new long[res.numBins(length) + 1];
+					for(int b = 0; b<a.length - 1; b++)
+					{
+						a[b+1] = a[b] + in.readLong();
+					}
+					res.lengths.put(contig, length);
+					res.cumulative.put(contig, a);
+				}
+				return res;
+			} finally {
+				in.close();
+			}
+		} catch(IOException e) {
+			System.err.println("Could not read coverage profile " + fn);
+			return null;
+		}
+	}
+}
@@ -0,0 +1,527 @@
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Scanner;
+
+/*
+ * Random access to the sequences in a FASTA file through a samtools-compatible .fai index
+ * The index is reused if it is newer than the FASTA file and built (and written next to it) otherwise
+ * The file itself is memory-mapped so that fetching a contig or subrange never reads unrelated sequence
+ */
+public class IndexedFasta {
+
+	// Each mapping of the file covers 2^WINDOW_BITS bytes, since a single mapping is limited to 2 GB
+	static final int WINDOW_BITS = 30;
+
+	String fn;
+
+	// Index entries in the order the sequences appear in the file
+	ArrayList<Entry> entries;
+	HashMap<String, Entry> entryMap;
+
+	FileChannel channel;
+	MappedByteBuffer[] windows;
+	long fileLength;
+
+	@SuppressWarnings("resource")
+	IndexedFasta(String fn) throws IOException
+	{
+		this.fn = fn;
+		entries = loadOrBuildIndex(fn);
+		entryMap = new HashMap<String, Entry>();
+		for(Entry e : entries)
+		{
+			entryMap.put(e.name, e);
+		}
+		channel = new RandomAccessFile(fn, "r").getChannel();
+		fileLength = channel.size();
+		windows = new MappedByteBuffer[(int)((fileLength >>> WINDOW_BITS) + 1)];
+	}
+
+	/*
+	 * Reads the index of a file if there is an up-to-date one, and builds and saves it otherwise
+	 * An index which can't be parsed or which doesn't reach the end of the file, as a truncated one wouldn't, is rebuilt
+	 */
+	static ArrayList<Entry> loadOrBuildIndex(String fn) throws IOException
+	{
+		File fastaFile = new File(fn);
+		File indexFile = new File(fn + ".fai");
+		if(indexFile.exists() && indexFile.lastModified() >= fastaFile.lastModified())
+		{
+			ArrayList<Entry> res = null;
+			try {
+				res = readIndex(indexFile.getPath());
+			} catch(RuntimeException e) {
+				res = null;
+			}
+			if(res != null && coversFile(res, fn))
+			{
+				return res;
+			}
+			System.err.println("Index " + indexFile.getPath() + " does not match " + fn);
+		}
+		System.err.println("Building index for " + fn);
+		ArrayList<Entry> res = buildIndex(fn);
+		try {
+			writeIndex(indexFile.getPath(), res);
+		} catch(IOException e) {
+			System.err.println("Could not write index to " + indexFile.getPath() + "; using it in memory only");
+		}
+		return res;
+	}
+
+	/*
+	 * Reads a .fai file - FASTA indices have five columns and FASTQ indices have a sixth with the quality offset
+	 */
+	static ArrayList<Entry> readIndex(String indexFn) throws IOException
+	{
+		ArrayList<Entry> res = new ArrayList<Entry>();
+		Scanner input = new Scanner(new FileInputStream(new File(indexFn)));
+		while(input.hasNext())
+		{
+			String line = input.nextLine();
+			if(line.length() == 0)
+			{
+				continue;
+			}
+			res.add(new Entry(line));
+		}
+		input.close();
+		return res;
+	}
+
+	/*
+	 * Checks that the last sequence in an index lies within the file and that nothing but line endings come after it
+	 */
+	static boolean coversFile(ArrayList<Entry> entries, String fn) throws IOException
+	{
+		RandomAccessFile in = new RandomAccessFile(fn, "r");
+		try {
+			long fileLength = in.length();
+			if(entries.isEmpty())
+			{
+				return fileLength == 0;
+			}
+			Entry last = entries.get(entries.size() - 1);
+			long end = last.offset;
+			if(last.length > 0)
+			{
+				if(last.lineBases <= 0 || last.lineWidth < last.lineBases)
+				{
+					return false;
+				}
+				long numLines = (last.length + last.lineBases - 1) / last.lineBases;
+				end += (numLines - 1) * last.lineWidth + last.length - (numLines - 1) * last.lineBases;
+			}
+			if(last.offset < 0 || end > fileLength)
+			{
+				return false;
+			}
+			in.seek(end);
+			for(long pos = end; pos < fileLength; pos++)
+			{
+				int b = in.read();
+				if(b != '\n' && b != '\r')
+				{
+					return false;
+				}
+			}
+			return true;
+		} finally {
+			in.close();
+		}
+	}
+
+	/*
+	 * Writes an index to a temporary file and moves it into place once it is complete, so a run killed partway through
+	 * never leaves a truncated index to be trusted later
+	 */
+	static void writeIndex(String indexFn, ArrayList<Entry> entries) throws IOException
+	{
+		File tmp = new File(indexFn + ".tmp");
+		PrintWriter out = new PrintWriter(tmp);
+		for(Entry e : entries)
+		{
+			out.println(e);
+		}
+		out.close();
+		if(out.checkError())
+		{
+			tmp.delete();
+			throw new IOException("Error writing " + indexFn);
+		}
+		Files.move(tmp.toPath(), new File(indexFn).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/*
+	 * Scans a FASTA file and computes the offset and line layout of each sequence
+	 * As with samtools, every line of a sequence other than the last must have the same length
+	 */
+	static ArrayList<Entry> buildIndex(String fn) throws IOException
+	{
+		ArrayList<Entry> res = new ArrayList<Entry>();
+		BufferedInputStream in = new BufferedInputStream(new FileInputStream(new File(fn)), 1 << 20);
+		byte[] buf = new byte[1 << 20];
+
+		// The absolute position in the file of the next byte to be read
+		long pos = 0;
+
+		// State of the line currently being read
+		boolean header = false, inName = false, lineStart = true, carriageReturn = false;
+		int lineLength = 0;
+		StringBuilder name = new StringBuilder();
+
+		// State of the sequence currently being read
+		Entry cur = null;
+		boolean sawShortLine = false;
+
+		while(true)
+		{
+			int n = in.read(buf);
+			if(n == -1)
+			{
+				break;
+			}
+			for(int i = 0; i<n; i++, pos++)
+			{
+				byte b = buf[i];
+				if(lineStart)
+				{
+					lineStart = false;
+					header = b == '>';
+					inName = header;
+					lineLength = 0;
+					carriageReturn = false;
+					if(header)
+					{
+						name.setLength(0);
+						continue;
+					}
+				}
+				if(b == '\n')
+				{
+					if(header)
+					{
+						cur = new Entry(name.toString(), pos + 1);
+						res.add(cur);
+						sawShortLine = false;
+					}
+					else
+					{
+						sawShortLine = addLine(cur, lineLength, carriageReturn, sawShortLine, fn);
+					}
+					lineStart = true;
+					continue;
+				}
+				if(header)
+				{
+					if(b == ' ' || b == '\t' || b == '\r')
+					{
+						inName = false;
+					}
+					else if(inName)
+					{
+						name.append((char)(b & 0xff));
+					}
+				}
+				else
+				{
+					carriageReturn = b == '\r';
+					lineLength++;
+				}
+			}
+		}
+		in.close();
+
+		// Handle a final line with no trailing newline
+		if(!lineStart && !header)
+		{
+			addLine(cur, lineLength, carriageReturn, sawShortLine, fn);
+		}
+		else if(!lineStart && header)
+		{
+			res.add(new Entry(name.toString(), pos));
+		}
+		return res;
+	}
+
+	/*
+	 * Adds a sequence line to an index entry and returns whether the sequence has now had a line shorter than the others
+	 */
+	static boolean addLine(Entry cur, int lineLength, boolean carriageReturn, boolean sawShortLine, String fn) throws IOException
+	{
+		int bases = lineLength - (carriageReturn ? 1 : 0);
+		if(cur == null)
+		{
+			if(bases == 0)
+			{
+				return sawShortLine;
+			}
+			throw new IOException("Sequence found before the first header in " + fn);
+		}
+		if(bases == 0)
+		{
+			// Blank lines are only allowed after the end of a sequence
+			return true;
+		}
+		if(sawShortLine || (cur.lineBases != 0 && bases > cur.lineBases))
+		{
+			throw new IOException("Different line lengths within sequence " + cur.name + " in " + fn);
+		}
+		if(cur.lineBases == 0)
+		{
+			cur.lineBases = bases;
+			cur.lineWidth = lineLength + 1;
+		}
+		cur.length += bases;
+		return bases < cur.lineBases;
+	}
+
+	boolean contains(String name)
+	{
+		return entryMap.containsKey(name);
+	}
+
+	/*
+	 * The length of a sequence, or -1 if it is not in the file
+	 */
+	int length(String name)
+	{
+		Entry e = entryMap.get(name);
+		return e == null ? -1 : e.length;
+	}
+
+	/*
+	 * Gets the full sequence with a given name, or null if it is not in the file
+	 */
+	String fetch(String name) throws IOException
+	{
+		Entry e = entryMap.get(name);
+		return e == null ? null : fetch(e, 0, e.length);
+	}
+
+	/*
+	 * Gets the sequence in the 0-based half-open interval [start, end) of a given sequence, or null if it is not in the file
+	 */
+	String fetch(String name, int start, int end) throws IOException
+	{
+		Entry e = entryMap.get(name);
+		return e == null ? null : fetch(e, start, end);
+	}
+
+	String fetch(Entry e, int start, int end) throws IOException
+	{
+		start = Math.max(0, start);
+		end = Math.min(end, e.length);
+		if(end <= start)
+		{
+			return "";
+		}
+		byte[] res = new byte[end - start];
+		fetch(e, start, end, res, 0);
+		return new String(res, StandardCharsets.ISO_8859_1);
+	}
+
+	/*
+	 * Copies the bases in [start, end) of a sequence into an array, where the interval must be within the sequence
+	 */
+	void fetch(Entry e, int start, int end, byte[] dst, int off) throws IOException
+	{
+		int filled = 0;
+		while(filled < end - start)
+		{
+			// Copy the rest of the current line, or as much of it as is needed
+			int basePos = start + filled;
+			int col = basePos % e.lineBases;
+			int count = Math.min(e.lineBases - col, end - start - filled);
+			read(e.offset + (long)(basePos / e.lineBases) * e.lineWidth + col, dst, off + filled, count);
+			filled += count;
+		}
+	}
+
+	/*
+	 * Gets the header line of a sequence without the leading '>', including any description after the name
+	 */
+	String header(Entry e) throws IOException
+	{
+		// The header line ends just before the sequence starts, so look back from there for the start of the line
+		byte[] b = new byte[1];
+		long end = e.offset;
+		if(end > 0)
+		{
+			read(end - 1, b, 0, 1);
+			if(b[0] == '\n')
+			{
+				end--;
+			}
+		}
+		long start = end;
+		while(start > 0)
+		{
+			read(start - 1, b, 0, 1);
+			if(b[0] == '\n')
+			{
+				break;
+			}
+			start--;
+		}
+		byte[] res = new byte[(int)(end - start)];
+		read(start, res, 0, res.length);
+		int len = res.length;
+		if(len > 0 && res[len - 1] == '\r')
+		{
+			len--;
+		}
+		return len > 0 && res[0] == '>' ? new String(res, 1, len - 1, StandardCharsets.ISO_8859_1) : new String(res, 0, len, StandardCharsets.ISO_8859_1);
+	}
+
+	/*
+	 * Whether the lines of a sequence can be copied from the file as they are, which needs them to end in plain newlines
+	 */
+	boolean canTransfer(Entry e)
+	{
+		return e.length > 0 && e.lineWidth == e.lineBases + 1;
+	}
+
+	/*
+	 * Copies the lines of a sequence from the file straight to a channel, leaving out the newline after the last one
+	 */
+	void transferTo(Entry e, WritableByteChannel out) throws IOException
+	{
+		long numLines = (e.length + e.lineBases - 1) / e.lineBases;
+		long pos = e.offset, count = (numLines - 1) * e.lineWidth + e.length - (numLines - 1) * e.lineBases;
+		while(count > 0)
+		{
+			long copied = channel.transferTo(pos, count, out);
+			pos += copied;
+			count -= copied;
+		}
+	}
+
+	/*
+	 * Copies bytes starting at a given position in the file into an array
+	 */
+	void read(long pos, byte[] dst, int off, int len) throws IOException
+	{
+		while(len > 0)
+		{
+			ByteBuffer window = window((int)(pos >>> WINDOW_BITS)).duplicate();
+			window.position((int)(pos & ((1L << WINDOW_BITS) - 1)));
+			int count = Math.min(len, window.remaining());
+			window.get(dst, off, count);
+			pos += count;
+			off += count;
+			len -= count;
+		}
+	}
+
+	/*
+	 * Gets the mapping of a given window of the file, mapping it the first time it is needed
+	 */
+	synchronized MappedByteBuffer window(int idx) throws IOException
+	{
+		if(windows[idx] == null)
+		{
+			long start = (long)idx << WINDOW_BITS;
+			windows[idx] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(1L << WINDOW_BITS, fileLength - start));
+		}
+		return windows[idx];
+	}
+
+	/*
+	 * Gets the sequences with the given names which are present in the file, added in file order
+	 */
+	HashMap<String, String> getSequences(HashSet<String> names) throws IOException
+	{
+		HashMap<String, String> res = new HashMap<String, String>();
+		for(Entry e : entries)
+		{
+			if(names.contains(e.name))
+			{
+				res.put(e.name, fetch(e, 0, e.length));
+			}
+		}
+		return res;
+	}
+
+	/*
+	 * Gets a map from sequence name to length without reading any sequence
+	 */
+	HashMap<String, Integer> getLengths()
+	{
+		HashMap<String, Integer> res = new HashMap<String, Integer>();
+		for(Entry e : entries)
+		{
+			res.put(e.name, e.length);
+		}
+		return res;
+	}
+
+	/*
+	 * Prints statistics about the contig lengths in the file
+	 */
+	void assemblyStats()
+	{
+		ArrayList<Integer> contigLengths = new ArrayList<Integer>();
+		long totLength = 0;
+		for(Entry e : entries)
+		{
+			contigLengths.add(e.length);
+			totLength += e.length;
+		}
+		ReadUtils.assemblyStats(contigLengths, totLength);
+	}
+
+	void close() throws IOException
+	{
+		channel.close();
+	}
+
+	/*
+	 * A line of a .fai file - the quality offset is only present when indexing FASTQ files
+	 */
+	static class Entry
+	{
+		String name;
+		int length;
+		long offset;
+		int lineBases, lineWidth;
+		long qualOffset;
+		Entry(String name, long offset)
+		{
+			this.name = name;
+			this.offset = offset;
+			length = 0;
+			lineBases = 0;
+			lineWidth = 0;
+			qualOffset = -1;
+		}
+		Entry(String line)
+		{
+			String[] tokens = line.split("\t");
+			name = tokens[0];
+			length = Integer.parseInt(tokens[1]);
+			offset = Long.parseLong(tokens[2]);
+			lineBases = Integer.parseInt(tokens[3]);
+			lineWidth = Integer.parseInt(tokens[4]);
+			qualOffset = tokens.length > 5 ? Long.parseLong(tokens[5]) : -1;
+		}
+		public String toString()
+		{
+			return name + "\t" + length + "\t" + offset + "\t" + lineBases + "\t" + lineWidth + (qualOffset == -1 ? "" : ("\t" + qualOffset));
+		}
+	}
+}
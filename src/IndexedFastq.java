@@ -0,0 +1,592 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Random access to the reads in a FASTQ file through a samtools-compatible (fqidx) .fai index
+ * The index is written the first time the file is scanned, so later runs can seek directly to the reads they need
+ * Records are expected to have the sequence and quality on one line each
+ */
+public class IndexedFastq {
+
+	// How many reads each fetching task reads before handing back its results
+	static int fetchBatchSize = 256;
+
+	String fn;
+
+	IndexedFastq(String fn)
+	{
+		this.fn = fn;
+	}
+
+	/*
+	 * Whether there is an index of a FASTQ file which is at least as new as the file
+	 */
+	static boolean hasIndex(String fn)
+	{
+		File indexFile = new File(fn + ".fai");
+		return indexFile.exists() && indexFile.lastModified() >= new File(fn).lastModified();
+	}
+
+	/*
+	 * Gets the sequences of the reads with the given names, using positioned reads from a thread pool
+	 * The index is streamed through a hash set of the names so only the needed entries are kept in memory
+	 */
+	HashMap<String, String> fetch(HashSet<String> names, int threads) throws Exception
+	{
+		ArrayList<IndexedFasta.Entry> needed = new ArrayList<IndexedFasta.Entry>();
+		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(fn + ".fai"), StandardCharsets.ISO_8859_1), 1 << 20);
+		String line;
+		while((line = br.readLine()) != null)
+		{
+			int tab = line.indexOf('\t');
+			if(tab != -1 && names.contains(line.substring(0, tab)))
+			{
+				needed.add(new IndexedFasta.Entry(line));
+			}
+		}
+		br.close();
+
+		// Read in file order so that the disk is accessed as sequentially as possible
+		Collections.sort(needed, new Comparator<IndexedFasta.Entry>() {
+			@Override
+			public int compare(IndexedFasta.Entry a, IndexedFasta.Entry b) {
+				return Long.compare(a.offset, b.offset);
+			}
+		});
+
+		HashMap<String, String> res = new HashMap<String, String>();
+		RandomAccessFile raf = new RandomAccessFile(fn, "r");
+		FileChannel channel = raf.getChannel();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+		try {
+			ArrayList<Future<String[]>> batches = new ArrayList<Future<String[]>>();
+			for(int i = 0; i<needed.size(); i += fetchBatchSize)
+			{
+				final int start = i, end = Math.min(i + fetchBatchSize, needed.size());
+				batches.add(pool.submit(() -> {
+					String[] seqs = new String[end - start];
+					for(int j = start; j<end; j++)
+					{
+						seqs[j - start] = readSequence(channel, needed.get(j));
+					}
+					return seqs;
+				}));
+			}
+			for(int i = 0; i<batches.size(); i++)
+			{
+				String[] seqs = batches.get(i).get();
+				for(int j = 0; j<seqs.length; j++)
+				{
+					res.put(needed.get(i * fetchBatchSize + j).name, seqs[j]);
+				}
+			}
+		} finally {
+			pool.shutdown();
+			raf.close();
+		}
+		return res;
+	}
+
+	/*
+	 * Reads the sequence of an indexed record with positioned reads, which are safe to issue from several threads
+	 */
+	static String readSequence(FileChannel channel, IndexedFasta.Entry e) throws IOException
+	{
+		if(e.length == 0)
+		{
+			return "";
+		}
+		long span = (long)((e.length - 1) / e.lineBases) * e.lineWidth + (e.length - 1) % e.lineBases + 1;
+		ByteBuffer buf = ByteBuffer.allocate((int)span);
+		long pos = e.offset;
+		while(buf.hasRemaining())
+		{
+			int n = channel.read(buf, pos);
+			if(n == -1)
+			{
+				throw new IOException("Index entry for " + e.name + " extends past the end of " + channel);
+			}
+			pos += n;
+		}
+		byte[] raw = buf.array();
+		if(e.lineBases == e.length)
+		{
+			return new String(raw, StandardCharsets.ISO_8859_1);
+		}
+
+		// Strip out line breaks if the sequence is wrapped
+		byte[] seq = new byte[e.length];
+		for(int i = 0; i<e.length; i += e.lineBases)
+		{
+			System.arraycopy(raw, (i / e.lineBases) * e.lineWidth, seq, i, Math.min(e.lineBases, e.length - i));
+		}
+		return new String(seq, StandardCharsets.ISO_8859_1);
+	}
+
+	/*
+	 * Scans the whole FASTQ file, writing its index and collecting the sequences of the given reads
+	 * The file is split into record-aligned chunks which are scanned in parallel, and header names are
+	 * checked against a Bloom filter as raw bytes so that only likely matches are ever decoded
+	 */
+	@SuppressWarnings("resource")
+	static HashMap<String, String> scanAndIndex(String fn, HashSet<String> names, int threads) throws Exception
+	{
+		FileChannel channel = new RandomAccessFile(fn, "r").getChannel();
+		long fileSize = channel.size();
+		NameBloomFilter filter = new NameBloomFilter(names);
+		boolean writeIndex = canWriteIndex(fn);
+
+		// Use several chunks per thread so that threads which finish early can pick up more work
+		int numChunks = (int)Math.max(1, Math.min(4L * threads, fileSize / minChunkSize));
+		long[] chunkStarts = new long[numChunks + 1];
+		for(int i = 1; i<numChunks; i++)
+		{
+			chunkStarts[i] = findRecordStart(channel, fileSize * i / numChunks, fileSize);
+		}
+		chunkStarts[numChunks] = fileSize;
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+		ArrayList<Future<ChunkResult>> chunks = new ArrayList<Future<ChunkResult>>();
+		ArrayList<File> indexParts = new ArrayList<File>();
+		for(int i = 0; i<numChunks; i++)
+		{
+			final int chunk = i;
+			File indexPart = writeIndex ? new File(fn + ".fai.part" + chunk) : null;
+			if(indexPart != null)
+			{
+				indexParts.add(indexPart);
+			}
+			chunks.add(pool.submit(() -> scanChunk(channel, chunkStarts[chunk], chunkStarts[chunk + 1], fileSize, names, filter, indexPart)));
+		}
+
+		// Combine the chunks in file order
+		HashMap<String, String> res = new HashMap<String, String>();
+		try {
+			try {
+				for(Future<ChunkResult> chunk : chunks)
+				{
+					res.putAll(chunk.get().seqs);
+				}
+			} finally {
+				// Let any chunks still running finish so that none of them write a part after it has been cleaned up
+				pool.shutdown();
+				pool.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+				channel.close();
+			}
+			if(writeIndex)
+			{
+				concatenateIndex(fn, indexParts);
+			}
+		} finally {
+			// The parts are removed whether or not the scan succeeded, so a failed chunk doesn't leave them next to the reads
+			for(File part : indexParts)
+			{
+				part.delete();
+			}
+		}
+		return res;
+	}
+
+	// The smallest region of the file worth giving to its own worker
+	static long minChunkSize = 1 << 24;
+
+	/*
+	 * Whether an index can be created next to a FASTQ file
+	 */
+	static boolean canWriteIndex(String fn)
+	{
+		File dir = new File(fn).getAbsoluteFile().getParentFile();
+		return dir != null && dir.canWrite();
+	}
+
+	/*
+	 * Finds the start of the first record at or after a position in the file
+	 * A record starts with a line beginning with '@' whose second line after it begins with '+', which a quality line can't satisfy
+	 */
+	static long findRecordStart(FileChannel channel, long pos, long fileSize) throws IOException
+	{
+		LineReader lines = new LineReader(channel, pos, fileSize);
+
+		// Skip the partial line at the position unless the position is a line start
+		ByteBuffer prev = ByteBuffer.allocate(1);
+		channel.read(prev, pos - 1);
+		if(prev.get(0) != '\n' && !lines.next())
+		{
+			return fileSize;
+		}
+
+		// The starts and first characters of the last three lines
+		long[] starts = new long[3];
+		byte[] firsts = new byte[3];
+		int count = 0;
+		while(lines.next())
+		{
+			starts[count % 3] = lines.lineStart;
+			firsts[count % 3] = lines.length > 0 ? lines.buf[lines.offset] : 0;
+			count++;
+			if(count >= 3 && firsts[(count - 3) % 3] == '@' && firsts[(count - 1) % 3] == '+')
+			{
+				return starts[(count - 3) % 3];
+			}
+		}
+		return fileSize;
+	}
+
+	/*
+	 * The reads found in, and the part of the index covering, one chunk of a FASTQ file
+	 */
+	static class ChunkResult
+	{
+		HashMap<String, String> seqs;
+		File indexPart;
+		ChunkResult(HashMap<String, String> seqs, File indexPart)
+		{
+			this.seqs = seqs;
+			this.indexPart = indexPart;
+		}
+	}
+
+	/*
+	 * Scans the records whose headers start in [start, end), writing their index entries to a part file if one is given
+	 * Sequence lines of records which aren't needed are skipped over without being decoded
+	 */
+	static ChunkResult scanChunk(FileChannel channel, long start, long end, long fileSize, HashSet<String> names, NameBloomFilter filter, File indexPart) throws IOException
+	{
+		HashMap<String, String> res = new HashMap<String, String>();
+		LineReader lines = new LineReader(channel, start, fileSize);
+		BufferedOutputStream indexOut = indexPart == null ? null : new BufferedOutputStream(new FileOutputStream(indexPart), 1 << 20);
+		byte[] numberBuf = new byte[20];
+		while(lines.next())
+		{
+			if(lines.lineStart >= end)
+			{
+				break;
+			}
+			if(lines.length == 0)
+			{
+				continue;
+			}
+			int nameStart = lines.offset + 1;
+			int nameEnd = lines.nameEnd();
+
+			// Only decode the name if it might be one of the reads being looked for
+			String name = null;
+			if(filter.mightContain(lines.buf, nameStart, nameEnd))
+			{
+				name = new String(lines.buf, nameStart, nameEnd - nameStart, StandardCharsets.ISO_8859_1);
+				if(!names.contains(name))
+				{
+					name = null;
+				}
+			}
+
+			// The name is written out now since the buffer may move once the following lines are read
+			if(indexOut != null)
+			{
+				indexOut.write(lines.buf, nameStart, nameEnd - nameStart);
+			}
+			if(!lines.next())
+			{
+				break;
+			}
+			long seqOffset = lines.lineStart;
+			int seqLength = lines.contentLength();
+			if(name != null)
+			{
+				res.put(name, lines.string());
+			}
+			lines.next();
+			lines.next();
+			if(indexOut != null)
+			{
+				writeField(indexOut, seqLength, numberBuf);
+				writeField(indexOut, seqOffset, numberBuf);
+				writeField(indexOut, seqLength, numberBuf);
+				writeField(indexOut, seqLength + lines.lineEndingLength(), numberBuf);
+				writeField(indexOut, lines.lineStart, numberBuf);
+				indexOut.write('\n');
+			}
+		}
+		if(indexOut != null)
+		{
+			indexOut.close();
+		}
+		return new ChunkResult(res, indexPart);
+	}
+
+	/*
+	 * Writes a tab followed by a non-negative number without going through a String
+	 */
+	static void writeField(BufferedOutputStream out, long val, byte[] numberBuf) throws IOException
+	{
+		out.write('\t');
+		int pos = numberBuf.length;
+		do
+		{
+			numberBuf[--pos] = (byte)('0' + val % 10);
+			val /= 10;
+		}
+		while(val > 0);
+		out.write(numberBuf, pos, numberBuf.length - pos);
+	}
+
+	/*
+	 * Joins the per-chunk parts into the final index, which is only put in place once it is complete
+	 */
+	@SuppressWarnings("resource")
+	static void concatenateIndex(String fn, ArrayList<File> parts) throws IOException
+	{
+		File tmp = new File(fn + ".fai.tmp");
+		FileChannel out = new FileOutputStream(tmp).getChannel();
+		try {
+			for(File part : parts)
+			{
+				FileChannel in = new FileInputStream(part).getChannel();
+				long size = in.size(), copied = 0;
+				while(copied < size)
+				{
+					copied += in.transferTo(copied, size - copied, out);
+				}
+				in.close();
+			}
+		} finally {
+			out.close();
+		}
+		File indexFile = new File(fn + ".fai");
+		indexFile.delete();
+		if(!tmp.renameTo(indexFile))
+		{
+			System.err.println("Could not write index to " + indexFile.getPath());
+			tmp.delete();
+		}
+	}
+
+	/*
+	 * A Bloom filter over read names which can be queried directly with the bytes of a FASTQ header
+	 */
+	static class NameBloomFilter
+	{
+		// About 1% false positives with 10 bits per name and 7 hash functions
+		static int bitsPerName = 10;
+		static int numHashes = 7;
+
+		long[] bits;
+		long numBits;
+
+		NameBloomFilter(HashSet<String> names)
+		{
+			bits = new long[(int)Math.max(1, ((long)names.size() * bitsPerName + 63) / 64)];
+			numBits = 64L * bits.length;
+			for(String name : names)
+			{
+				byte[] b = name.getBytes(StandardCharsets.ISO_8859_1);
+				long h = hash(b, 0, b.length);
+				for(int i = 0; i<numHashes; i++)
+				{
+					long bit = Long.remainderUnsigned(h + i * ((h >>> 32) | 1), numBits);
+					bits[(int)(bit >>> 6)] |= 1L << bit;
+				}
+			}
+		}
+
+		boolean mightContain(byte[] b, int start, int end)
+		{
+			long h = hash(b, start, end);
+			for(int i = 0; i<numHashes; i++)
+			{
+				long bit = Long.remainderUnsigned(h + i * ((h >>> 32) | 1), numBits);
+				if((bits[(int)(bit >>> 6)] & (1L << bit)) == 0)
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/*
+		 * 64-bit FNV-1a with a final mix so that both halves of the hash are well distributed
+		 */
+		static long hash(byte[] b, int start, int end)
+		{
+			long h = 0xcbf29ce484222325L;
+			for(int i = start; i<end; i++)
+			{
+				h ^= b[i] & 0xff;
+				h *= 0x100000001b3L;
+			}
+			h ^= h >>> 33;
+			h *= 0xff51afd7ed558ccdL;
+			h ^= h >>> 33;
+			return h;
+		}
+	}
+
+	/*
+	 * Reads lines as raw bytes from a region of a file, keeping track of where in the file each line starts
+	 * Lines are never decoded unless asked for, and the buffer grows to fit lines of any length
+	 */
+	static class LineReader
+	{
+		FileChannel channel;
+
+		// The next position in the file to read into the buffer, and where the region ends
+		long filePos, regionEnd;
+
+		byte[] buf;
+
+		// The number of valid bytes in the buffer
+		int limit;
+
+		// Where in the buffer the next line starts
+		int pos;
+
+		// The current line is buf[offset, offset + length) not including the newline, and starts at lineStart in the file
+		int offset, length;
+		long lineStart;
+
+		LineReader(FileChannel channel, long start, long end)
+		{
+			this.channel = channel;
+			filePos = start;
+			regionEnd = end;
+			buf = new byte[1 << 22];
+			limit = 0;
+			pos = 0;
+		}
+
+		/*
+		 * Moves to the next line, returning false at the end of the region
+		 */
+		boolean next() throws IOException
+		{
+			int scanFrom = pos;
+			while(true)
+			{
+				for(int i = scanFrom; i<limit; i++)
+				{
+					if(buf[i] == '\n')
+					{
+						setLine(i);
+						pos = i + 1;
+						return true;
+					}
+				}
+				int consumed = limit - pos;
+				if(!fill())
+				{
+					if(limit > pos)
+					{
+						// Last line of the region without a newline
+						setLine(limit);
+						pos = limit;
+						return true;
+					}
+					return false;
+				}
+				scanFrom = pos + consumed;
+			}
+		}
+
+		void setLine(int newline)
+		{
+			lineStart = filePos - (limit - pos);
+			offset = pos;
+			length = newline - pos;
+		}
+
+		/*
+		 * Reads more of the region into the buffer, keeping the partial line at the end of it
+		 */
+		boolean fill() throws IOException
+		{
+			if(filePos >= regionEnd)
+			{
+				return false;
+			}
+			int leftover = limit - pos;
+			if(leftover == buf.length)
+			{
+				byte[] bigger = new byte[buf.length * 2];
+				System.arraycopy(buf, pos, bigger, 0, leftover);
+				buf = bigger;
+			}
+			else
+			{
+				System.arraycopy(buf, pos, buf, 0, leftover);
+			}
+			pos = 0;
+			limit = leftover;
+			ByteBuffer bb = ByteBuffer.wrap(buf, limit, (int)Math.min(buf.length - limit, regionEnd - filePos));
+			int n = 0;
+			while(bb.hasRemaining())
+			{
+				int read = channel.read(bb, filePos + n);
+				if(read == -1)
+				{
+					break;
+				}
+				n += read;
+			}
+			if(n == 0)
+			{
+				return false;
+			}
+			limit += n;
+			filePos += n;
+			return true;
+		}
+
+		/*
+		 * The length of the line without any carriage return
+		 */
+		int contentLength()
+		{
+			return (length > 0 && buf[offset + length - 1] == '\r') ? length - 1 : length;
+		}
+
+		/*
+		 * The number of bytes after the content of the line, including the newline
+		 */
+		int lineEndingLength()
+		{
+			return length - contentLength() + 1;
+		}
+
+		/*
+		 * Where the read name in a header line ends - it runs from after the '@' until the first whitespace
+		 */
+		int nameEnd()
+		{
+			int end = offset + 1;
+			int lineEnd = offset + contentLength();
+			while(end < lineEnd && buf[end] != ' ' && buf[end] != '\t')
+			{
+				end++;
+			}
+			return end;
+		}
+
+		String string()
+		{
+			return new String(buf, offset, contentLength(), StandardCharsets.ISO_8859_1);
+		}
+	}
+}
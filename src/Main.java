@@ -1,4 +1,7 @@
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import java.io.*;
 
@@ -9,48 +12,78 @@ public static void main(String[] args) throws Exception
 	// Read in command line parameters
 	Settings.parseArgs(args);
 	
-	Scanner input = new Scanner(new FileInputStream(new File(Settings.pafFn)));
 	PrintWriter out = new PrintWriter(new File(Settings.outFn));
 	
-	// Read in alignments and bucket by which read was aligned
-	HashMap<String, ArrayList<SortablePafAlignment>> alignmentsPerRead = new HashMap<>();
-	while(input.hasNext())
+	// Only keep track of every read supporting each edge if they will be output or saved for later
+	boolean keepReads = Settings.readMetadataFn.length() > 0 || Settings.scaffoldGraphFn.length() > 0;
+	
+	/*
+	 * When checkpointing, the product of each expensive stage is saved once it is done,
+	 * and a resumed run starts from the latest stage with a checkpoint made from the same inputs and parameters
+	 */
+	Checkpoints checkpoints = Settings.checkpointDir.length() > 0 ? new Checkpoints(Settings.checkpointDir, keepReads) : null;
+	int resumeFrom = checkpoints != null && Settings.RESUME ? checkpoints.latest() : -1;
+	if(resumeFrom >= 0)
 	{
-		String line = input.nextLine();
-		SortablePafAlignment cur = new SortablePafAlignment(line);
-		
-		double curThreshold = Math.min(.2 * cur.readLength, Settings.MIN_ALIGNMENT_LENGTH);
-		
-		// Filter out short alignments
-		if(cur.readEnd - cur.readStart < curThreshold)
+		System.err.println("Resuming from checkpoint: " + Checkpoints.NAMES[resumeFrom]);
+	}
+	
+	/*
+	 * Read in alignments and bucket by which read was aligned - they are only needed until the chains have been found
+	 * When streaming, they are instead read one read at a time each time they are needed and never all held at once
+	 */
+	HashMap<String, ArrayList<SortablePafAlignment>> alignmentsPerRead = null;
+	if(resumeFrom >= Checkpoints.ALIGNMENTS && resumeFrom < Checkpoints.CHAINS)
+	{
+		alignmentsPerRead = checkpoints.loadAlignments();
+	}
+	else if(resumeFrom < Checkpoints.ALIGNMENTS && !Settings.STREAM_ALIGNMENTS)
+	{
+		alignmentsPerRead = readAlignments(Settings.pafFn);
+		if(checkpoints != null)
 		{
-			continue;
+			checkpoints.saveAlignments(alignmentsPerRead);
 		}
-		
-		// Filter out low-quality alignments
-		if(cur.mapq < Settings.MIN_QUALITY)
+	}
+	
+	// Profile the coverage of the contigs by the alignments if it is wanted for inspection
+	if(Settings.coverageFn.length() > 0 || Settings.coverageMapFile.length() > 0)
+	{
+		CoverageProfile coverage = getCoverage(alignmentsPerRead);
+		if(coverage != null && Settings.coverageFn.length() > 0)
 		{
-			continue;
+			coverage.writeBedGraph(Settings.coverageFn);
 		}
-		
-		String readName = cur.readName;
-		
-		ReadUtils.addToMap(alignmentsPerRead, readName, cur);
 	}
 	
 	// If performing misassembly correction, find a list of breakpoints based on novel adjacencies
 	ArrayList<CorrectMisassemblies.NovelAdjacency> corrections = new ArrayList<CorrectMisassemblies.NovelAdjacency>();
-	if(Settings.ALLOW_BREAKS)
+	if(resumeFrom >= Checkpoints.CORRECTIONS)
 	{
-		corrections = CorrectMisassemblies.findMisassemblies(alignmentsPerRead);
-		if(Settings.VERBOSE)
+		corrections = checkpoints.loadCorrections();
+	}
+	else
+	{
+		if(Settings.ALLOW_BREAKS && Settings.STREAM_ALIGNMENTS)
 		{
-			for(CorrectMisassemblies.NovelAdjacency na : corrections)
-			{
-				System.err.println(na);
-			}
-			System.err.println("Number of misassemblies: " + corrections.size());
+			corrections = CorrectMisassemblies.findMisassemblies(Settings.pafFn);
+		}
+		else if(Settings.ALLOW_BREAKS)
+		{
+			corrections = CorrectMisassemblies.findMisassemblies(alignmentsPerRead);
+		}
+		if(checkpoints != null)
+		{
+			checkpoints.saveCorrections(corrections);
+		}
+	}
+	if(Settings.ALLOW_BREAKS && Settings.VERBOSE)
+	{
+		for(CorrectMisassemblies.NovelAdjacency na : corrections)
+		{
+			System.err.println(na);
 		}
+		System.err.println("Number of misassemblies: " + corrections.size());
 	}
 	
 	// Perform splitting as needed and remap reads to broken contigs
@@ -60,77 +93,95 @@ public static void main(String[] args) throws Exception
 	
 	System.err.println("Number of breaks: " + splitter.numBreaks);
 	
-	alignmentsPerRead = CorrectMisassemblies.remapAll(splitter, alignmentsPerRead);
+	/*
+	 * Output broken assembly
+	 * It only depends on the breakpoints, so it is written in the background while the rest of the run goes on
+	 */
+	Future<Void> brokenOutput = null;
+	if(Settings.OUTPUT_BROKEN && corrections.size() > 0)
+	{
+		System.err.println("Outputting broken assembly");
+		ExecutorService brokenWriter = Executors.newSingleThreadExecutor();
+		brokenOutput = brokenWriter.submit(() -> {
+			splitter.outputBrokenAssembly(Settings.fastaFn, Settings.brokenOutputFile);
+			return null;
+		});
+		brokenWriter.shutdown();
+	}
 	
 	/*
 	 * Get chains of unique mappings to reads and keep track of contigs/reads involved in them
 	 */
 	
 	// Map from read to alignment chains it's involved in
-	HashMap<String, ArrayList<ArrayList<SortablePafAlignment>>> chainsPerRead = new HashMap<>();
+	HashMap<String, ArrayList<ArrayList<SortablePafAlignment>>> chainsPerRead;
+	if(resumeFrom >= Checkpoints.CHAINS)
+	{
+		chainsPerRead = checkpoints.loadChains();
+	}
+	else if(Settings.STREAM_ALIGNMENTS)
+	{
+		chainsPerRead = getChains(Settings.pafFn, splitter);
+	}
+	else
+	{
+		alignmentsPerRead = CorrectMisassemblies.remapAll(splitter, alignmentsPerRead);
+		chainsPerRead = getChains(alignmentsPerRead);
+		alignmentsPerRead = null;
+		if(checkpoints != null)
+		{
+			checkpoints.saveChains(chainsPerRead);
+		}
+	}
 	
 	// Set of read names involved in alignment chains
 	HashSet<String> readNames = new HashSet<String>();
-	
-	// Iterate over reads, find chains of read
-	for(String s : alignmentsPerRead.keySet())
+	for(String s : chainsPerRead.keySet())
 	{
-		if(alignmentsPerRead.get(s).size() == 1)
+		for(ArrayList<SortablePafAlignment> l : chainsPerRead.get(s))
 		{
-			continue;
-		}
-		
-		ArrayList<ArrayList<SortablePafAlignment>> chains = AlignmentGatherer.getUniqueMatches(alignmentsPerRead.get(s));
-		
-		if(chains.size() > 0)
-		{
-			for(ArrayList<SortablePafAlignment> l : chains)
+			for(SortablePafAlignment spa : l)
 			{
-				for(SortablePafAlignment spa : l)
-				{
-					contigNames.add(spa.contigName);
-				}
+				contigNames.add(spa.contigName);
 			}
-			chainsPerRead.put(s, chains);
-			readNames.add(s);
 		}
+		readNames.add(s);
 	}
 	
 	/*
-	 * Output broken assembly
+	 * In incremental mode, the alignments are only of the reads which are new since the saved graph was built,
+	 * so the contigs relevant to the earlier reads need to be added back
 	 */
-	if(Settings.OUTPUT_BROKEN && corrections.size() > 0)
+	ScaffoldGraph sg;
+	if(Settings.INCREMENTAL)
 	{
-		System.err.println("Outputting broken assembly");
-		splitter.outputBrokenAssembly(Settings.fastaFn, Settings.brokenOutputFile);
+		System.err.println("Loading scaffold graph from " + Settings.scaffoldGraphFn);
+		sg = ScaffoldGraphFile.read(Settings.scaffoldGraphFn, contigNames);
 	}
+	else
+	{
+		sg = new ScaffoldGraph(keepReads);
+	}
+	HashSet<String> relevantContigs = new HashSet<String>(contigNames);
 	
 	/*
 	 * Get sequences of relevant contigs/reads for merging
+	 * In low-memory mode, contigs are fetched from an index of the FASTA file whenever they are needed
+	 * In low-memory and incremental modes, reads are only loaded after scaffolding, once it is known which of them are used to fill gaps
 	 */
-	
-	// Relevant reads
-	HashMap<String, String> readSequences = new HashMap<>(), contigSequences = new HashMap<>();
-	if(!Settings.reuseRelevantSeqs || (readSequences = ReadUtils.readMap(Settings.relevantReadSequenceFile)).size() == 0)
+	HashMap<String, String> readSequences = new HashMap<>();
+	ContigSequenceStore contigSequences;
+	if(Settings.LOW_MEMORY)
 	{
-		System.err.println("Filtering reads");
-		if(Settings.readFn.endsWith(".fa") || Settings.readFn.endsWith(".fasta"))
-		{
-			readSequences = ReadUtils.getFastaMap(Settings.readFn, readNames);
-		}
-		else
-		{
-			readSequences = ReadUtils.getFastqMap(Settings.readFn, readNames);
-		}
-		ReadUtils.writeMap(Settings.relevantReadSequenceFile, readSequences);
+		contigSequences = new ContigSequenceStore(Settings.fastaFn, contigNames, splitter);
 	}
-	
-	// Relevant contigs
-	if(!Settings.reuseRelevantSeqs || (contigSequences = ReadUtils.readMap(Settings.relevantContigSequenceFile)).size() == 0)
+	else
 	{
-		System.err.println("Filtering contigs");
-		contigSequences = ReadUtils.getFastaMap(Settings.fastaFn, contigNames);
-		ReadUtils.writeMap(Settings.relevantContigSequenceFile, contigSequences);
+		if(!Settings.INCREMENTAL)
+		{
+			readSequences = getReadSequences(readNames);
+		}
+		contigSequences = new ContigSequenceStore(getContigSequences(contigNames), splitter);
 	}
 	
 	if(Settings.VERBOSE)
@@ -138,68 +189,68 @@ public static void main(String[] args) throws Exception
 		System.err.println("Split contigs:\n" +splitter.subcontigMap.keySet());
 	}
 	
-	// Adjust contig sequence map based on any splitting that happened
-	ArrayList<String> keys = new ArrayList<String>();
-	keys.addAll(contigSequences.keySet());
-	
-	for(String s : keys)
-	{
-		if(splitter.breakSequence(s, contigSequences.get(s)))
-		{
-			contigSequences.remove(s);
-		}
-	}
-	for(String splitContigName : splitter.sequenceMap.keySet())
-	{
-		contigSequences.put(splitContigName, splitter.sequenceMap.get(splitContigName));
-	}
-	
 	/*
 	 * Compute k-mer frequencies across different reads which will be used to get better measures of overlap for graph-building
+	 * When contigs are fetched as needed this makes two passes over them, since the sums depend on the counts of every k-mer
+	 * They are only needed to build the graph, so they are skipped when resuming with the graph already built
 	 */
-	System.err.println("Initializing frequency map for contig kmers");
-	ContigKmerFrequencyMap freq = new ContigKmerFrequencyMap();
-	
-	// Add k-mers to index for overall counts and lengths of sequences
-	System.err.println("Adding contig kmer frequencies");
-	for(String s : contigSequences.keySet())
+	ContigKmerFrequencyMap freq = null;
+	if(resumeFrom == Checkpoints.KMERS)
 	{
-		freq.addKmerCount(s, contigSequences.get(s));
+		freq = checkpoints.loadKmers();
 	}
-	
-	// Index the k-mer counts of each sequence with a cumulative sum array for faster queries
-	System.err.println("Indexing contig kmer frequencies");
-	for(String s : contigSequences.keySet())
+	else if(resumeFrom < Checkpoints.KMERS)
 	{
-		freq.addSumArray(s, contigSequences.get(s));
+		System.err.println("Initializing frequency map for contig kmers");
+		freq = new ContigKmerFrequencyMap();
+		
+		// Add k-mers to index for overall counts and lengths of sequences
+		System.err.println("Adding contig kmer frequencies");
+		for(String s : contigSequences.names())
+		{
+			freq.addKmerCount(s, contigSequences.get(s));
+		}
+		
+		// Index the k-mer counts of each sequence with a cumulative sum array for faster queries
+		System.err.println("Indexing contig kmer frequencies");
+		for(String s : contigSequences.names())
+		{
+			freq.addSumArray(s, contigSequences.get(s));
+		}
+		if(checkpoints != null)
+		{
+			checkpoints.saveKmers(freq);
+		}
 	}
 	
 	/*
 	 * Add edges to the scaffold graph based on the chains of alignments
 	 */
-	ScaffoldGraph sg = new ScaffoldGraph();
-	System.err.println("Joining contigs");
 	int numMerged = 0;
-	for(String readName : chainsPerRead.keySet())
+	if(resumeFrom >= Checkpoints.GRAPH)
 	{
-		ArrayList<ArrayList<SortablePafAlignment>> allChains = chainsPerRead.get(readName);
-		for(ArrayList<SortablePafAlignment> chain : allChains)
-		{
-			addEdges(sg, chain, freq);
-		}
+		sg = checkpoints.loadGraph();
 	}
-	
-	/*
-	 * Add a dummy edge between split contigs to give them the opportunity to be rejoined if they don't get joined with other things
-	 */
-	readSequences.put("undosplit", "A");
-	for(String s : splitter.subcontigMap.keySet())
+	else
 	{
-		ArrayList<CorrectMisassemblies.ContigBreaker.Subcontig> subs = splitter.subcontigMap.get(s);
-		int numSubcontigs = subs.size();
-		for(int i = 0; i<numSubcontigs-1; i++)
+		System.err.println("Joining contigs");
+		addAllEdges(sg, chainsPerRead, freq);
+		
+		/*
+		 * Add a dummy edge between split contigs to give them the opportunity to be rejoined if they don't get joined with other things
+		 */
+		for(String s : splitter.subcontigMap.keySet())
+		{
+			ArrayList<CorrectMisassemblies.ContigBreaker.Subcontig> subs = splitter.subcontigMap.get(s);
+			int numSubcontigs = subs.size();
+			for(int i = 0; i<numSubcontigs-1; i++)
+			{
+				sg.addEdge(subs.get(i).name, subs.get(i+1).name, "undosplit", 0, 0, 0, false, true, 1);
+			}
+		}
+		if(checkpoints != null)
 		{
-			sg.addEdge(subs.get(i).name, subs.get(i+1).name, "undosplit", 0, 0, 0, false, true, 1);
+			checkpoints.saveGraph(sg);
 		}
 	}
 	
@@ -219,23 +270,51 @@ public static void main(String[] args) throws Exception
 	
 	numMerged = results.numMerged;
 	
+	if(Settings.scaffoldGraphFn.length() > 0)
+	{
+		System.err.println("Saving scaffold graph to " + Settings.scaffoldGraphFn);
+		ScaffoldGraphFile.write(Settings.scaffoldGraphFn, sg, results.solution, relevantContigs);
+	}
+	
+	if(Settings.LOW_MEMORY || Settings.INCREMENTAL)
+	{
+		readSequences = getReadSequences(getGapFillingReads(scaffoldEdges));
+	}
+	readSequences.put("undosplit", "A");
+	
 	/*
 	 * Output all scaffolds consisting of multiple contigs
+	 * Scaffolds are merged in parallel in windows of a few per thread, and written in order as each window finishes
 	 */
-	int index = 1;
-	for(String s : scaffoldContigs.keySet())
-	{
-        System.out.println("scaffold print: " + s + " " + scaffoldContigs.get(s).size());
-		String headerLine = OutputScaffolds.createHeaderLine(index, scaffoldContigs.get(s), splitter);
-		index++;
-		if(Settings.VERBOSE)
+	ArrayList<String> scaffoldKeys = new ArrayList<String>(scaffoldContigs.keySet());
+	int windowSize = 4 * Math.max(1, Settings.THREADS);
+	ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Settings.THREADS));
+	HashMap<String, String> gapReads = readSequences;
+	try {
+		for(int windowStart = 0; windowStart < scaffoldKeys.size(); windowStart += windowSize)
 		{
-			System.err.println(headerLine);
+			ArrayList<Future<String>> merged = new ArrayList<Future<String>>();
+			int windowEnd = Math.min(scaffoldKeys.size(), windowStart + windowSize);
+			for(int i = windowStart; i<windowEnd; i++)
+			{
+				String s = scaffoldKeys.get(i);
+				merged.add(pool.submit(() -> merge(scaffoldContigs.get(s), scaffoldEdges.get(s), gapReads, contigSequences)));
+			}
+			for(int i = windowStart; i<windowEnd; i++)
+			{
+				String s = scaffoldKeys.get(i);
+				System.out.println("scaffold print: " + s + " " + scaffoldContigs.get(s).size());
+				String headerLine = OutputScaffolds.createHeaderLine(i + 1, scaffoldContigs.get(s), splitter);
+				if(Settings.VERBOSE)
+				{
+					System.err.println(headerLine);
+				}
+				out.println(headerLine);
+				out.println(merged.get(i - windowStart).get());
+			}
 		}
-		out.println(headerLine);
-		String seq = merge(scaffoldContigs.get(s), scaffoldEdges.get(s), readSequences, contigSequences);
-		
-		out.println(seq);
+	} finally {
+		pool.shutdown();
 	}
 	
 	/*
@@ -249,7 +328,7 @@ public static void main(String[] args) throws Exception
 			if(!usedContigs.contains(sc.name))
 			{
 				out.println(">" + sc.name + " " + sc.oldName);
-				out.println(splitter.sequenceMap.get(sc.name));
+				out.println(contigSequences.get(sc.name));
 			}
 		}
 	}
@@ -268,9 +347,9 @@ public static void main(String[] args) throws Exception
 	{
 		PrintWriter joinsOut = new PrintWriter(new File(Settings.joinsOutGfaFn));
 		joinsOut.println("H\t1.0");
-		for(String s : contigSequences.keySet())
+		for(String s : contigSequences.names())
 		{
-			joinsOut.println("S\t" + s + "\t*\tLN:" + contigSequences.get(s).length());
+			joinsOut.println("S\t" + s + "\t*\tLN:" + contigSequences.length(s));
 		}
 		for(String contigKey : scaffoldContigs.keySet())
 		{
@@ -343,13 +422,230 @@ public static void main(String[] args) throws Exception
 		}
 		metadataOut.close();
 	}
+	
+	contigSequences.close();
+	
+	// Wait for the broken assembly to be written, passing on any error from writing it
+	if(brokenOutput != null)
+	{
+		brokenOutput.get();
+	}
+}
+
+/*
+ * Reads the alignments in a PAF file which are long enough and of high enough quality, grouped by read
+ */
+static HashMap<String, ArrayList<SortablePafAlignment>> readAlignments(String fn) throws IOException
+{
+	Scanner input = new Scanner(new FileInputStream(new File(fn)));
+	HashMap<String, ArrayList<SortablePafAlignment>> alignmentsPerRead = new HashMap<>();
+	while(input.hasNext())
+	{
+		String line = input.nextLine();
+		SortablePafAlignment cur = new SortablePafAlignment(line);
+		
+		// Filter out short and low-quality alignments
+		if(!ReadGroupedPaf.passesFilters(cur))
+		{
+			continue;
+		}
+		
+		String readName = cur.readName;
+		
+		ReadUtils.addToMap(alignmentsPerRead, readName, cur);
+	}
+	input.close();
+	return alignmentsPerRead;
+}
+
+/*
+ * Gets the chains of unique mappings to each read which has any, reading the alignments of one read at a time from a file
+ * which has each read's alignments together, and moving them onto subcontigs of broken contigs as they are read
+ * The chains are put in the map in the order the reads would have in a map of all of the alignments, so the graph is built the same way
+ */
+static HashMap<String, ArrayList<ArrayList<SortablePafAlignment>>> getChains(String fn, CorrectMisassemblies.ContigBreaker splitter) throws IOException
+{
+	HashMap<String, ArrayList<ArrayList<SortablePafAlignment>>> found = new HashMap<>();
+	ReadGroupedPaf paf = new ReadGroupedPaf(fn);
+	ArrayList<SortablePafAlignment> alignments;
+	while((alignments = paf.next()) != null)
+	{
+		alignments.removeIf(spa -> !splitter.remap(spa));
+		if(alignments.size() < 2)
+		{
+			continue;
+		}
+		ArrayList<ArrayList<SortablePafAlignment>> chains = AlignmentGatherer.getUniqueMatches(alignments);
+		if(chains.size() > 0)
+		{
+			found.put(chains.get(0).get(0).readName, chains);
+		}
+	}
+	paf.close();
+	
+	HashMap<String, ArrayList<ArrayList<SortablePafAlignment>>> chainsPerRead = new HashMap<>();
+	for(String s : paf.reads)
+	{
+		if(found.containsKey(s))
+		{
+			chainsPerRead.put(s, found.get(s));
+		}
+	}
+	return chainsPerRead;
+}
 
+/*
+ * Gets the coverage profile of the alignments, reusing the one from a previous run if allowed and available
+ * Returns null if it would have to be built but the alignments were not loaded because the run resumed from a later checkpoint
+ * When streaming, it is built in its own pass over the alignments
+ */
+static CoverageProfile getCoverage(HashMap<String, ArrayList<SortablePafAlignment>> alignmentsPerRead) throws IOException
+{
+	CoverageProfile coverage = null;
+	if(Settings.reuseRelevantSeqs && Settings.coverageMapFile.length() > 0)
+	{
+		coverage = CoverageProfile.read(Settings.coverageMapFile, Settings.pafFn, Settings.COVERAGE_RESOLUTION, Settings.WEIGHTED_COVERAGE);
+	}
+	if(coverage == null)
+	{
+		if(alignmentsPerRead == null && !Settings.STREAM_ALIGNMENTS)
+		{
+			System.err.println("Skipping the coverage profile because the alignments were not loaded when resuming");
+			return null;
+		}
+		System.err.println("Profiling coverage");
+		coverage = new CoverageProfile(Settings.COVERAGE_RESOLUTION, Settings.WEIGHTED_COVERAGE);
+		if(alignmentsPerRead != null)
+		{
+			for(ArrayList<SortablePafAlignment> alignments : alignmentsPerRead.values())
+			{
+				coverage.add(alignments);
+			}
+		}
+		else
+		{
+			ReadGroupedPaf paf = new ReadGroupedPaf(Settings.pafFn);
+			ArrayList<SortablePafAlignment> alignments;
+			while((alignments = paf.next()) != null)
+			{
+				coverage.add(alignments);
+			}
+			paf.close();
+		}
+		coverage.finish();
+		if(Settings.coverageMapFile.length() > 0)
+		{
+			coverage.write(Settings.coverageMapFile, Settings.pafFn);
+		}
+	}
+	return coverage;
+}
+
+/*
+ * Gets the chains of unique mappings to each read which has any
+ */
+static HashMap<String, ArrayList<ArrayList<SortablePafAlignment>>> getChains(HashMap<String, ArrayList<SortablePafAlignment>> alignmentsPerRead)
+{
+	HashMap<String, ArrayList<ArrayList<SortablePafAlignment>>> chainsPerRead = new HashMap<>();
+	
+	// Iterate over reads, find chains of read
+	for(String s : alignmentsPerRead.keySet())
+	{
+		if(alignmentsPerRead.get(s).size() == 1)
+		{
+			continue;
+		}
+		
+		ArrayList<ArrayList<SortablePafAlignment>> chains = AlignmentGatherer.getUniqueMatches(alignmentsPerRead.get(s));
+		
+		if(chains.size() > 0)
+		{
+			chainsPerRead.put(s, chains);
+		}
+	}
+	return chainsPerRead;
+}
+
+/*
+ * Gets the sequences of the given reads, reusing the sequences from a previous run if allowed and available
+ * The reads may be spread over a comma-separated list of files, such as one per sequencing run, in which case they are not cached
+ */
+static HashMap<String, String> getReadSequences(HashSet<String> readNames) throws Exception
+{
+	HashMap<String, String> readSequences;
+	String[] readFns = Settings.readFn.split(",");
+	if(readFns.length > 1)
+	{
+		System.err.println("Filtering reads");
+		readSequences = new HashMap<String, String>();
+		HashSet<String> remaining = new HashSet<String>(readNames);
+		for(String fn : readFns)
+		{
+			HashMap<String, String> found = getReadSequences(fn, remaining);
+			readSequences.putAll(found);
+			remaining.removeAll(found.keySet());
+		}
+		return readSequences;
+	}
+	if(!Settings.reuseRelevantSeqs || (readSequences = ReadUtils.readMap(Settings.relevantReadSequenceFile, Settings.readFn, readNames)).size() == 0)
+	{
+		System.err.println("Filtering reads");
+		readSequences = getReadSequences(Settings.readFn, readNames);
+		ReadUtils.writeMap(Settings.relevantReadSequenceFile, readSequences, Settings.readFn, readNames);
+	}
+	return readSequences;
+}
+
+/*
+ * Gets the sequences of the given reads which are in a FASTA or FASTQ file
+ */
+static HashMap<String, String> getReadSequences(String fn, HashSet<String> readNames) throws Exception
+{
+	if(fn.endsWith(".fa") || fn.endsWith(".fasta"))
+	{
+		return ReadUtils.getFastaMap(fn, readNames);
+	}
+	return ReadUtils.getFastqMap(fn, readNames);
+}
+
+/*
+ * Gets the sequences of the given contigs, reusing the sequences from a previous run if allowed and available
+ */
+static HashMap<String, String> getContigSequences(HashSet<String> contigNames) throws Exception
+{
+	HashMap<String, String> contigSequences;
+	if(!Settings.reuseRelevantSeqs || (contigSequences = ReadUtils.readMap(Settings.relevantContigSequenceFile, Settings.fastaFn, contigNames)).size() == 0)
+	{
+		System.err.println("Filtering contigs");
+		contigSequences = ReadUtils.getFastaMap(Settings.fastaFn, contigNames);
+		ReadUtils.writeMap(Settings.relevantContigSequenceFile, contigSequences, Settings.fastaFn, contigNames);
+	}
+	return contigSequences;
+}
+
+/*
+ * Gets the names of the reads whose sequences are needed to fill gaps between the contigs in scaffolds
+ */
+static HashSet<String> getGapFillingReads(HashMap<String, ArrayDeque<ScaffoldGraph.Alignment>> scaffoldEdges)
+{
+	HashSet<String> res = new HashSet<String>();
+	for(ArrayDeque<ScaffoldGraph.Alignment> edges : scaffoldEdges.values())
+	{
+		for(ScaffoldGraph.Alignment aln : edges)
+		{
+			if(aln.myReadEnd < aln.theirReadStart)
+			{
+				res.add(aln.read);
+			}
+		}
+	}
+	return res;
 }
 
 /*
  * Merges contigs together based on the alignments in a path of a scaffold graph
  */
-static String merge(ArrayDeque<String> contigs, ArrayDeque<ScaffoldGraph.Alignment> als, HashMap<String, String> readMap, HashMap<String, String> relevantContigs)
+static String merge(ArrayDeque<String> contigs, ArrayDeque<ScaffoldGraph.Alignment> als, HashMap<String, String> readMap, ContigSequenceStore relevantContigs) throws IOException
 {
 	StringBuilder res = new StringBuilder();
 	boolean first = true;
@@ -407,9 +703,45 @@ static String merge(ArrayDeque<String> contigs, ArrayDeque<ScaffoldGraph.Alignme
 }
 
 /*
- * Add edges to a scaffold graph based on a chain of alignments to the same read
+ * Add edges to a scaffold graph based on the chains of alignments to every read
+ * The reads are split into chunks which are processed in parallel, and the edges from each chunk are added in order,
+ * so the graph is the same as when adding the edges from one read at a time
+ */
+static void addAllEdges(ScaffoldGraph sg, HashMap<String, ArrayList<ArrayList<SortablePafAlignment>>> chainsPerRead, ContigKmerFrequencyMap freq) throws Exception
+{
+	ArrayList<String> readNames = new ArrayList<String>(chainsPerRead.keySet());
+	int numChunks = Math.max(1, Math.min(readNames.size(), 4 * Settings.THREADS));
+	ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Settings.THREADS));
+	ArrayList<Future<ScaffoldGraph.EdgeShard>> shards = new ArrayList<Future<ScaffoldGraph.EdgeShard>>();
+	for(int i = 0; i<numChunks; i++)
+	{
+		List<String> chunk = readNames.subList((int)((long)readNames.size() * i / numChunks), (int)((long)readNames.size() * (i+1) / numChunks));
+		shards.add(pool.submit(() -> {
+			ScaffoldGraph.EdgeShard shard = new ScaffoldGraph.EdgeShard();
+			for(String readName : chunk)
+			{
+				for(ArrayList<SortablePafAlignment> chain : chainsPerRead.get(readName))
+				{
+					addEdges(shard, chain, freq);
+				}
+			}
+			return shard;
+		}));
+	}
+	try {
+		for(Future<ScaffoldGraph.EdgeShard> shard : shards)
+		{
+			sg.addShard(shard.get());
+		}
+	} finally {
+		pool.shutdown();
+	}
+}
+
+/*
+ * Add edges to a shard of a scaffold graph based on a chain of alignments to the same read
  */
-static void addEdges(ScaffoldGraph sg, ArrayList<SortablePafAlignment> als, ContigKmerFrequencyMap freq)
+static void addEdges(ScaffoldGraph.EdgeShard sg, ArrayList<SortablePafAlignment> als, ContigKmerFrequencyMap freq)
 {
 	SortablePafAlignment last = null;
 	boolean lastReversed = false;
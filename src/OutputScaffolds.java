@@ -2,30 +2,28 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayDeque;
-import java.util.ArrayList;
 import java.util.HashMap;
 
 public class OutputScaffolds {
 	
 	/*
-	 * Output the overlap of contigs 
+	 * Output the overlap of contigs, with one link for each pair of contig ends joined by any reads
 	 */
-	static void outputGfa(String ofn, ScaffoldGraph graph, HashMap<String, String> contigSequences) throws Exception
+	static void outputGfa(String ofn, ScaffoldGraph graph, ContigSequenceStore contigSequences) throws Exception
 	{
 		PrintWriter out = new PrintWriter(new File(ofn));
 		out.println("H\t1.0");
-		for(String s : contigSequences.keySet())
+		for(String s : contigSequences.names())
 		{
-			out.println("S\t" + s + "\t*\tLN:" + contigSequences.get(s).length());
+			out.println("S\t" + s + "\t*\tLN:" + contigSequences.length(s));
 		}
-		for(String from: graph.adj.keySet())
+		for(String from : graph.contigIds.keySet())
 		{
-			ArrayList<ScaffoldGraph.Alignment> alnList = graph.adj.get(from)[0];
-			for(ScaffoldGraph.Alignment aln : alnList)
+			for(int e : graph.getForwardEdges(graph.contigIds.get(from)))
 			{
-				String to = aln.to;
-				char fromStrand = aln.myContigPrefix ? '-' : '+';
-				char toStrand = aln.theirContigPrefix ? '+' : '-';
+				String to = graph.contigNames.get(ScaffoldGraph.contig(graph.edgeTo[e]));
+				char fromStrand = ScaffoldGraph.isPrefix(graph.edgeFrom[e]) ? '-' : '+';
+				char toStrand = ScaffoldGraph.isPrefix(graph.edgeTo[e]) ? '+' : '-';
 				out.printf("%s\t%s\t%s\t%s\t%s\t%s\n", "L", from, fromStrand, to, toStrand, "*");
 			}
 		}
@@ -286,14 +286,9 @@ static class Position
 
 static HashMap<String, Integer> getLengths() throws Exception
 {
-	HashMap<String, Integer> res = new HashMap<String, Integer>();
-	Scanner input = new Scanner(new FileInputStream(new File(contigFile + ".fai")));
-	while(input.hasNext())
-	{
-		String line = input.nextLine();
-		String[] tokens = line.split("\t");
-		res.put(tokens[0], Integer.parseInt(tokens[1]));
-	}
+	IndexedFasta contigs = new IndexedFasta(contigFile);
+	HashMap<String, Integer> res = contigs.getLengths();
+	contigs.close();
 	return res;
 }
 }
@@ -0,0 +1,100 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/*
+ * Reads the alignments in a PAF file one read at a time, for files which have all of the alignments of each read together as aligners output them
+ * Only alignments which pass the length and quality filters are returned, and reads with none left are skipped
+ */
+public class ReadGroupedPaf {
+
+	String fn;
+	BufferedReader input;
+
+	// The first alignment of the next read, or null at the end of the file
+	SortablePafAlignment next;
+
+	// The reads returned so far, added in file order so that the set iterates in the same order as a map from read to alignments loaded from the file
+	HashSet<String> reads;
+
+	ReadGroupedPaf(String fn) throws IOException
+	{
+		this.fn = fn;
+		input = new BufferedReader(new FileReader(fn), 1 << 20);
+		reads = new HashSet<String>();
+		next = nextAlignment();
+	}
+
+	/*
+	 * Whether an alignment is long enough and of high enough quality to be used
+	 */
+	static boolean passesFilters(SortablePafAlignment cur)
+	{
+		double curThreshold = Math.min(.2 * cur.readLength, Settings.MIN_ALIGNMENT_LENGTH);
+
+		// Filter out short alignments
+		if(cur.readEnd - cur.readStart < curThreshold)
+		{
+			return false;
+		}
+
+		// Filter out low-quality alignments
+		if(cur.mapq < Settings.MIN_QUALITY)
+		{
+			return false;
+		}
+		return true;
+	}
+
+	/*
+	 * The next alignment in the file which passes the filters, or null at the end of the file
+	 */
+	SortablePafAlignment nextAlignment() throws IOException
+	{
+		String line;
+		while((line = input.readLine()) != null)
+		{
+			if(line.length() == 0)
+			{
+				continue;
+			}
+			SortablePafAlignment cur = new SortablePafAlignment(line);
+			if(passesFilters(cur))
+			{
+				return cur;
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * Gets the alignments of the next read, or null at the end of the file
+	 * Throws an exception if a read's alignments are not all together
+	 */
+	ArrayList<SortablePafAlignment> next() throws IOException
+	{
+		if(next == null)
+		{
+			return null;
+		}
+		String readName = next.readName;
+		if(!reads.add(readName))
+		{
+			throw new IOException("The alignments in " + fn + " are not grouped by read: " + readName + " appears in more than one place");
+		}
+		ArrayList<SortablePafAlignment> res = new ArrayList<SortablePafAlignment>();
+		while(next != null && next.readName.equals(readName))
+		{
+			res.add(next);
+			next = nextAlignment();
+		}
+		return res;
+	}
+
+	void close() throws IOException
+	{
+		input.close();
+	}
+}
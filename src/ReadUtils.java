@@ -29,117 +29,45 @@ static String reverseComplement(String s)
 	return new String(res);
 }
 /*
- * Reads a file consisting of pairs of string and produces
- * a map from the first string in each pair to the second
+ * Reads a cache of relevant sequences written by writeMap
+ * Returns an empty map if there is no usable cache, including when it was made from a different source file or set of names
  */
-static HashMap<String, String> readMap(String fn) throws IOException
+static HashMap<String, String> readMap(String fn, String sourceFn, HashSet<String> names)
 {
 	System.err.println("Reading map from " + fn);
-	try {
-		Scanner input = new Scanner(new FileInputStream(new File(fn)));
-		HashMap<String, String> res = new HashMap<String, String>();
-		while(input.hasNext())
-		{
-			String line = input.nextLine();
-			int idx = line.indexOf(' ');
-			String key = line.substring(0, idx);
-			String val = line.substring(idx+1);
-			res.put(key, val);
-		}
-		return res;
-	} catch(Exception e){
-		return new HashMap<String, String>();
-	}
+	HashMap<String, String> res = SequenceCache.read(fn, sourceFn, names);
+	return res == null ? new HashMap<String, String>() : res;
 }
 /*
- * Write a map from string to string to a file as key-value pairs
+ * Write a map from name to sequence to a binary cache, recording the source file and names it was made from
  */
-static void writeMap(String fn, HashMap<String, String> map) throws IOException
+static void writeMap(String fn, HashMap<String, String> map, String sourceFn, HashSet<String> names) throws IOException
 {
-	PrintWriter out = new PrintWriter(new File(fn));
-	for(String s : map.keySet())
-	{
-		out.println(s+" "+map.get(s));
-	}
-	out.close();
+	SequenceCache.write(fn, map, sourceFn, names);
 }
 /*
  * Reads a file in FASTQ format and maps read names to their sequences
+ * If the file has an up-to-date index only the requested reads are read, and otherwise the index is built during a parallel scan
  */
-@SuppressWarnings("resource")
-static HashMap<String, String> getFastqMap(String fn, HashSet<String> names)  throws IOException
+static HashMap<String, String> getFastqMap(String fn, HashSet<String> names) throws Exception
 {
-	HashMap<String, String> res = new HashMap<String, String>();
-	BufferedReader br = new BufferedReader(new FileReader(new File(fn)));
-	while(true)
+	if(IndexedFastq.hasIndex(fn))
 	{
-		try {
-			String name = br.readLine().substring(1).split(" ")[0];
-			if(names.contains(name)) res.put(name, br.readLine());
-			else br.readLine();
-			for(int i = 0; i<2; i++) br.readLine();
-		} catch(Exception e) {
-			break;
-		}
+		System.err.println("Fetching reads using index of " + fn);
+		return new IndexedFastq(fn).fetch(names, Settings.THREADS);
 	}
-	return res;
+	return IndexedFastq.scanAndIndex(fn, names, Settings.THREADS);
 }
 /*
  * Reads a file in FASTA format and maps read names to their sequences
+ * Only the requested sequences are read, using an index of the file
  */
-@SuppressWarnings("resource")
 static HashMap<String, String> getFastaMap(String fn, HashSet<String> names) throws IOException
 {
-	HashMap<String, String> res = new HashMap<String, String>();
-	BufferedReader br = new BufferedReader(new FileReader(new File(fn)));
-	String readName = br.readLine().split(" ")[0].substring(1);
-	StringBuilder seq = new StringBuilder("");
-	boolean useful = names.contains(readName);
-	int curLength = 0;
-	long totLength = 0;
-	ArrayList<Integer> contigLengths = new ArrayList<Integer>();
-	while(true)
-	{
-		try {
-			String line = br.readLine();
-			if(line.charAt(0) == '>')
-			{
-				// process last read
-				if(useful)
-				{
-					res.put(readName, seq.toString());
-					seq = new StringBuilder("");
-				}
-				// new read name
-				readName = line.split(" ")[0].substring(1);
-				useful = names.contains(readName);
-				contigLengths.add(curLength);
-				totLength += curLength;
-				curLength = 0;
-			}
-			else
-			{
-				curLength += line.length();
-				if(useful)
-				{
-					seq.append(line);
-				}
-			}
-		} catch(Exception e) {
-			break;
-		}
-	}
-	
-	contigLengths.add(curLength);
-	totLength += curLength;
-	
-	if(useful)
-	{
-		res.put(readName, seq.toString());
-	}
-	
-	assemblyStats(contigLengths, totLength);
-	
+	IndexedFasta fasta = new IndexedFasta(fn);
+	HashMap<String, String> res = fasta.getSequences(names);
+	fasta.assemblyStats();
+	fasta.close();
 	return res;
 }
 
@@ -1,7 +1,11 @@
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 
 /*
- * Map contig name -> contig name -> list of alignments
+ * A graph with a node for each end of a contig and an edge for each read which joins two contig ends
  */
 public class ScaffoldGraph {
 	
@@ -11,6 +15,7 @@ public class ScaffoldGraph {
 		HashMap<String, ArrayDeque<ScaffoldGraph.Alignment>> scaffoldEdges;
 		HashSet<String> usedContigs;
 		int numMerged;
+		Solution solution;
 		Scaffolding()
 		{
 			scaffoldContigs = new HashMap<>();
@@ -20,234 +25,934 @@ public class ScaffoldGraph {
 		}
 	}
 	
-	public Scaffolding globalScaffolding()
+	/*
+	 * The scaffolds built so far, with everything indexed by contig ID or by contig end
+	 * The contigs in each scaffold form a set in a union-find structure, and the root of the set holds the first and last contigs of the scaffold
+	 * Each scaffold is a doubly-linked list of contig ends, so joining two scaffolds only links two ends, and a scaffold
+	 * which needs to be flipped only has its first and last contigs swapped - the edges are put in order and direction when output
+	 */
+	static class ScaffoldState
+	{
+		int[] parent, size;
+		int[] first, last;
+		
+		// When the scaffold with each root got its current first contig, which is the order the scaffolds are output in
+		int[] createdAt;
+		
+		// For each contig end, the end of another contig it is joined to (or -1), and the consensus edge joining them
+		int[] partner;
+		int[] joinEdge;
+		
+		ScaffoldState(int numContigs)
+		{
+			parent = new int[numContigs];
+			size = new int[numContigs];
+			first = new int[numContigs];
+			last = new int[numContigs];
+			createdAt = new int[numContigs];
+			for(int i = 0; i<numContigs; i++)
+			{
+				parent[i] = i;
+				size[i] = 1;
+				first[i] = last[i] = i;
+			}
+			partner = new int[2 * numContigs];
+			Arrays.fill(partner, -1);
+			joinEdge = new int[2 * numContigs];
+		}
+		
+		int find(int c)
+		{
+			while(parent[c] != c)
+			{
+				parent[c] = parent[parent[c]];
+				c = parent[c];
+			}
+			return c;
+		}
+		
+		/*
+		 * Whether a contig has been joined to anything
+		 */
+		boolean isUsed(int c)
+		{
+			return size[find(c)] > 1;
+		}
+		
+		boolean isFirst(int c)
+		{
+			int root = find(c);
+			return size[root] > 1 && first[root] == c;
+		}
+		
+		boolean isLast(int c)
+		{
+			int root = find(c);
+			return size[root] > 1 && last[root] == c;
+		}
+		
+		/*
+		 * Whether a contig end is joined to another contig
+		 */
+		boolean isOccupied(int node)
+		{
+			return partner[node] != -1;
+		}
+		
+		/*
+		 * Joins the end of the scaffold ending in s to the end of the scaffold ending in t using a consensus edge from s to t
+		 */
+		void join(int s, int t, boolean myContigPrefix, boolean theirContigPrefix, int edge, int time)
+		{
+			int sRoot = find(s), tRoot = find(t);
+			
+			// s becomes internal unless it was on its own, and the far end of t's scaffold becomes the last contig
+			int firstContig = size[sRoot] > 1 ? first[sRoot] : s;
+			int lastContig = size[tRoot] > 1 ? (first[tRoot] == t ? last[tRoot] : first[tRoot]) : t;
+			int createdTime = size[sRoot] > 1 ? createdAt[sRoot] : time;
+			
+			int sNode = node(s, myContigPrefix), tNode = node(t, theirContigPrefix);
+			partner[sNode] = tNode;
+			partner[tNode] = sNode;
+			joinEdge[sNode] = joinEdge[tNode] = edge;
+			
+			int root = size[sRoot] >= size[tRoot] ? sRoot : tRoot, child = root == sRoot ? tRoot : sRoot;
+			parent[child] = root;
+			size[root] += size[child];
+			first[root] = firstContig;
+			last[root] = lastContig;
+			createdAt[root] = createdTime;
+		}
+	}
+	
+	/*
+	 * The joins made by scaffolding, given by half-edges so that they still mean the same thing after more edges are added to the graph
+	 * For each contig end, the end it is joined to (or -1) and the representative half-edge of the consensus edge joining them,
+	 * and for each scaffold its first and last contigs and the representative of the edge it got its first contig from
+	 */
+	static class Solution
+	{
+		int[] partner, joinHalfEdge;
+		int[] scaffoldFirst, scaffoldLast, scaffoldCreatedBy;
+	}
+	
+	/*
+	 * Greedily joins contigs using the heaviest consensus edges first
+	 * Joins never affect contigs outside of the connected component they are in, so each component is solved separately and in parallel,
+	 * trying its edges in the same order as they would be tried for the whole graph, which gives the same scaffolds as solving the graph at once
+	 * If the graph was loaded along with the solution from a previous run, components no new reads have touched keep their previous joins
+	 */
+	public Scaffolding globalScaffolding() throws Exception
 	{
 		Scaffolding res = new Scaffolding();
-		HashMap<String, String> lastToFirst = new HashMap<>();
-		PriorityQueue<Alignment> pq = ScaffoldGraphBuilder.getAllSortedEdges(this);
-		while(!pq.isEmpty())
+		int n = contigNames.size();
+		ScaffoldState state = new ScaffoldState(n);
+		
+		// Edges too light to be used have already been left out, so there is no need to stop early
+		ScaffoldGraphBuilder.ConsensusEdges consensus = ScaffoldGraphBuilder.getAllSortedEdges(this);
+		
+		// For each component, the positions in the sorted order of its edges
+		int[][] components = getComponents(consensus);
+		
+		int[] numMerged = restoreComponents(consensus, components, state);
+		StringBuilder[] logs = new StringBuilder[components.length];
+		parallelFor(components.length, c -> {
+			if(numMerged[c] == -1)
+			{
+				logs[c] = Settings.VERBOSE ? new StringBuilder() : null;
+				numMerged[c] = solveComponent(consensus, components[c], state, logs[c]);
+			}
+		});
+		for(int c = 0; c<components.length; c++)
+		{
+			if(logs[c] != null)
+			{
+				System.err.print(logs[c]);
+			}
+			res.numMerged += numMerged[c];
+		}
+		
+		// Output the scaffolds in the order they got their current first contig
+		ArrayList<Integer> roots = new ArrayList<Integer>();
+		for(int c = 0; c<n; c++)
+		{
+			if(state.parent[c] == c && state.size[c] > 1)
+			{
+				roots.add(c);
+			}
+		}
+		roots.sort((a, b) -> Integer.compare(state.createdAt[a], state.createdAt[b]));
+		for(int root : roots)
+		{
+			String key = contigNames.get(state.first[root]);
+			ArrayDeque<String> contigs = new ArrayDeque<String>();
+			ArrayDeque<Alignment> edges = new ArrayDeque<Alignment>();
+			getScaffold(state, consensus, root, contigs, edges);
+			res.scaffoldContigs.put(key, contigs);
+			res.scaffoldEdges.put(key, edges);
+			res.usedContigs.addAll(contigs);
+		}
+		res.solution = getSolution(state, consensus, roots);
+
+		return res;
+	}
+	
+	/*
+	 * Records the joins made in terms of half-edges, listing the scaffolds in the order they are output
+	 */
+	Solution getSolution(ScaffoldState state, ScaffoldGraphBuilder.ConsensusEdges consensus, ArrayList<Integer> roots)
+	{
+		Solution res = new Solution();
+		res.partner = Arrays.copyOf(state.partner, state.partner.length);
+		res.joinHalfEdge = new int[state.partner.length];
+		for(int node = 0; node<res.partner.length; node++)
+		{
+			res.joinHalfEdge[node] = res.partner[node] == -1 ? -1 : consensus.representative[state.joinEdge[node]];
+		}
+		res.scaffoldFirst = new int[roots.size()];
+		res.scaffoldLast = new int[roots.size()];
+		res.scaffoldCreatedBy = new int[roots.size()];
+		for(int j = 0; j<roots.size(); j++)
+		{
+			int root = roots.get(j);
+			res.scaffoldFirst[j] = state.first[root];
+			res.scaffoldLast[j] = state.last[root];
+			res.scaffoldCreatedBy[j] = consensus.representative[consensus.order[state.createdAt[root]]];
+		}
+		return res;
+	}
+	
+	/*
+	 * Restores the previous joins in every component which has not changed since the previous solution was found
+	 * A component none of whose contigs are touched by a new or updated edge has exactly the edges it had before, so solving it again would give the same joins
+	 * Returns the number of joins restored in each component, or -1 for components which need to be solved
+	 */
+	int[] restoreComponents(ScaffoldGraphBuilder.ConsensusEdges consensus, int[][] components, ScaffoldState state)
+	{
+		int[] res = new int[components.length];
+		Arrays.fill(res, -1);
+		if(previous == null)
+		{
+			return res;
+		}
+		
+		boolean[] changed = getChangedContigs();
+		int[] componentOf = new int[contigNames.size()];
+		Arrays.fill(componentOf, -1);
+		for(int c = 0; c<components.length; c++)
 		{
-			Alignment best = pq.poll();
-			if(!ScaffoldGraphBuilder.stillValid(best, res, lastToFirst))
+			res[c] = 0;
+			for(int k : components[c])
+			{
+				int h = consensus.representative[consensus.order[k]];
+				int s = contig(source(h)), t = contig(target(h));
+				componentOf[s] = componentOf[t] = c;
+				if(changed[s] || changed[t])
+				{
+					res[c] = -1;
+				}
+			}
+		}
+		
+		// Where the consensus edge with each representative is, and its position in the order edges are tried in
+		int[] consensusOf = new int[2 * numEdges];
+		for(int i = 0; i<consensus.size; i++)
+		{
+			consensusOf[consensus.representative[i]] = i;
+		}
+		int[] position = new int[consensus.size];
+		for(int k = 0; k<consensus.size; k++)
+		{
+			position[consensus.order[k]] = k;
+		}
+		
+		// Rebuild each scaffold in an unchanged component, using its first contig as the root of its set
+		int numRestored = 0;
+		for(int j = 0; j<previous.scaffoldFirst.length; j++)
+		{
+			int root = previous.scaffoldFirst[j];
+			int c = componentOf[root];
+			if(c == -1 || res[c] == -1)
 			{
 				continue;
 			}
-			
-			if(Settings.VERBOSE)
+			int exit = previous.partner[node(root, true)] != -1 ? node(root, true) : node(root, false);
+			while(true)
 			{
-				System.err.println("Taking edge:");
-				System.err.println(" from=" + best.from + ", myContigPrefix=" + best.myContigPrefix +
-						", to=" + best.to + ", theirContigPrefix=" + best.theirContigPrefix);
-			
+				int entry = previous.partner[exit];
+				state.partner[exit] = entry;
+				state.partner[entry] = exit;
+				state.joinEdge[exit] = state.joinEdge[entry] = consensusOf[previous.joinHalfEdge[exit]];
+				int cur = contig(entry);
+				state.parent[cur] = root;
+				state.size[root]++;
+				res[c]++;
+				if(cur == previous.scaffoldLast[j])
+				{
+					break;
+				}
+				exit = entry ^ 1;
 			}
-			
-			// Once weights get too small, stop
-			if(best.weight < Settings.MIN_WEIGHT_SUPPORT)
+			state.last[root] = previous.scaffoldLast[j];
+			state.createdAt[root] = position[consensusOf[previous.scaffoldCreatedBy[j]]];
+			numRestored++;
+		}
+		
+		int numSolved = 0;
+		for(int c = 0; c<components.length; c++)
+		{
+			if(res[c] == -1)
 			{
-				break;
+				numSolved++;
 			}
-			
-			String s = best.from;
-			
-			if(lastToFirst.containsKey(s) && res.scaffoldEdges.get(lastToFirst.get(s)).peekLast().theirContigPrefix == best.myContigPrefix)
+		}
+		System.err.println("Reused the joins in " + (components.length - numSolved) + " unchanged components (" + numRestored + " scaffolds); solving " + numSolved + " components");
+		return res;
+	}
+	
+	/*
+	 * Whether each contig has been added, or had an edge out of it added or given more support, since the graph was loaded
+	 */
+	boolean[] getChangedContigs()
+	{
+		boolean[] res = new boolean[contigNames.size()];
+		for(int c = baseNumContigs; c<res.length; c++)
+		{
+			res[c] = true;
+		}
+		for(int e = 0; e<numEdges; e++)
+		{
+			if(e >= baseEdgeCount.length || edgeCount[e] != baseEdgeCount[e])
+			{
+				res[contig(edgeFrom[e])] = res[contig(edgeTo[e])] = true;
+			}
+		}
+		return res;
+	}
+	
+	/*
+	 * Splits the consensus edges into the connected components of the contigs they join, using a concurrent union-find
+	 * Components are numbered by their heaviest edge, and each lists the positions of its edges in the sorted order
+	 */
+	int[][] getComponents(ScaffoldGraphBuilder.ConsensusEdges consensus) throws Exception
+	{
+		int n = contigNames.size();
+		AtomicIntegerArray parent = new AtomicIntegerArray(n);
+		for(int i = 0; i<n; i++)
+		{
+			parent.set(i, i);
+		}
+		parallelFor(consensus.size, i -> {
+			int h = consensus.representative[i];
+			union(parent, contig(source(h)), contig(target(h)));
+		});
+		
+		// Number the components in the order their first edges appear, and count the edges in each
+		int[] componentOf = new int[n];
+		Arrays.fill(componentOf, -1);
+		int[] positionComponent = new int[consensus.size];
+		int numComponents = 0;
+		ArrayList<Integer> sizes = new ArrayList<Integer>();
+		for(int k = 0; k<consensus.size; k++)
+		{
+			int root = find(parent, contig(source(consensus.representative[consensus.order[k]])));
+			if(componentOf[root] == -1)
+			{
+				componentOf[root] = numComponents++;
+				sizes.add(0);
+			}
+			positionComponent[k] = componentOf[root];
+			sizes.set(componentOf[root], sizes.get(componentOf[root]) + 1);
+		}
+		int[][] res = new int[numComponents][];
+		for(int c = 0; c<numComponents; c++)
+		{
+			res[c] = new int[sizes.get(c)];
+		}
+		int[] filled = new int[numComponents];
+		for(int k = 0; k<consensus.size; k++)
+		{
+			res[positionComponent[k]][filled[positionComponent[k]]++] = k;
+		}
+		return res;
+	}
+	
+	/*
+	 * Runs a task for each of the integers in [0, n) on a pool with the configured number of threads
+	 */
+	static void parallelFor(int n, IntConsumer task) throws Exception
+	{
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, Settings.THREADS));
+		try {
+			pool.submit(() -> IntStream.range(0, n).parallel().forEach(task)).get();
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	/*
+	 * Finds the root of a set in a union-find structure which may be updated concurrently, compressing the path along the way
+	 */
+	static int find(AtomicIntegerArray parent, int x)
+	{
+		while(true)
+		{
+			int p = parent.get(x);
+			if(p == x)
+			{
+				return x;
+			}
+			int grandparent = parent.get(p);
+			if(grandparent != p)
+			{
+				parent.compareAndSet(x, p, grandparent);
+			}
+			x = p;
+		}
+	}
+	
+	/*
+	 * Merges the sets containing two elements, always putting the higher root under the lower one so concurrent merges cannot form a cycle
+	 */
+	static void union(AtomicIntegerArray parent, int a, int b)
+	{
+		while(true)
+		{
+			a = find(parent, a);
+			b = find(parent, b);
+			if(a == b)
+			{
+				return;
+			}
+			if(a < b)
+			{
+				int tmp = a;
+				a = b;
+				b = tmp;
+			}
+			if(parent.compareAndSet(a, a, b))
+			{
+				return;
+			}
+		}
+	}
+	
+	/*
+	 * Runs the greedy joining on the edges of one component, given by their positions in the sorted order, and returns the number of joins made
+	 * The state is shared between components, but each one only touches the contigs it contains
+	 */
+	int solveComponent(ScaffoldGraphBuilder.ConsensusEdges consensus, int[] positions, ScaffoldState state, StringBuilder log)
+	{
+		int numMerged = 0;
+		for(int k : positions)
+		{
+			int i = consensus.order[k];
+			int h = consensus.representative[i];
+			int s = contig(source(h)), t = contig(target(h));
+			boolean myContigPrefix = isPrefix(source(h)), theirContigPrefix = isPrefix(target(h));
+			if(!ScaffoldGraphBuilder.stillValid(s, t, theirContigPrefix, state))
 			{
 				continue;
 			}
-			String t = best.to;
 			
-			if(Settings.VERBOSE)
+			if(log != null)
 			{
-				System.err.println("Confirmed edge addition from " + s + " to " + t);
+				log.append("Taking edge:\n");
+				log.append(" from=" + contigNames.get(s) + ", myContigPrefix=" + myContigPrefix +
+						", to=" + contigNames.get(t) + ", theirContigPrefix=" + theirContigPrefix + "\n");
 			}
 			
-			if(!res.usedContigs.contains(t))
+			// Make sure this edge doesn't use the same side of the source as the existing edge into it
+			if(state.isLast(s) && state.isOccupied(node(s, myContigPrefix)))
 			{
-				// t is by itself in a contig
-				
-				if(res.usedContigs.contains(s))
+				continue;
+			}
+			
+			if(log != null)
+			{
+				log.append("Confirmed edge addition from " + contigNames.get(s) + " to " + contigNames.get(t) + "\n");
+				boolean sUsed = state.isUsed(s), tUsed = state.isUsed(t);
+				if(!tUsed)
 				{
-					if(Settings.VERBOSE)
-					{
-						System.err.println("  From contig in larger scaffold to lone contig");
-					}
-					// s is the last contig in some scaffold
-					String firstContigInScaffold = lastToFirst.get(s);
-					ArrayDeque<String> allContigsInScaffold = res.scaffoldContigs.get(firstContigInScaffold);
-					ArrayDeque<ScaffoldGraph.Alignment> allEdgesInScaffold = res.scaffoldEdges.get(firstContigInScaffold);
-					allContigsInScaffold.addLast(t);
-					allEdgesInScaffold.add(best);
-					
-					res.usedContigs.add(t);
-					lastToFirst.remove(s);
-					lastToFirst.put(t, firstContigInScaffold);
+					log.append(sUsed ? "  From contig in larger scaffold to lone contig\n" : "  From one lone contig to another\n");
 				}
 				else
 				{
-					if(Settings.VERBOSE)
-					{
-						System.err.println("  From one lone contig to another");
-					}
-					// s hasn't been connected to anything yet
-					res.scaffoldEdges.put(s, new ArrayDeque<ScaffoldGraph.Alignment>());
-					res.scaffoldContigs.put(s, new ArrayDeque<String>());
-					res.scaffoldContigs.get(s).addLast(s);
-					res.scaffoldContigs.get(s).addLast(t);
-					res.scaffoldEdges.get(s).addLast(best);
-					res.usedContigs.add(s);
-					res.usedContigs.add(t);
-					lastToFirst.put(t, s);
+					log.append(sUsed ? "  From one scaffold to another\n" : "  From lone contig to a larger scaffold\n");
 				}
 			}
 			
+			// The position in the sorted order is when the join happened, which is the same as when solving the whole graph at once
+			state.join(s, t, myContigPrefix, theirContigPrefix, i, k);
+			numMerged++;
+		}
+		return numMerged;
+	}
+	
+	/*
+	 * Walks a scaffold from its first contig to its last, listing its contigs and the edges between them
+	 * Edges which were added going in the other direction are reversed
+	 */
+	void getScaffold(ScaffoldState state, ScaffoldGraphBuilder.ConsensusEdges consensus, int root, ArrayDeque<String> contigs, ArrayDeque<Alignment> edges)
+	{
+		int cur = state.first[root];
+		int exit = state.isOccupied(node(cur, true)) ? node(cur, true) : node(cur, false);
+		contigs.addLast(contigNames.get(cur));
+		while(true)
+		{
+			int entry = state.partner[exit];
+			Alignment edge = consensus.getAlignment(state.joinEdge[exit]);
+			String curName = contigNames.get(cur);
+			if(edge.from.equals(curName))
+			{
+				edges.addLast(edge);
+			}
 			else
 			{
-				// In calculating best, already made sure it's the first or last in its scaffold
-				// Move entire scaffold with t to the end of the scaffold with s
-				boolean tFirst = res.scaffoldContigs.containsKey(t);
-				String lastContigInScaffold = tFirst ? res.scaffoldContigs.get(t).peekLast() : lastToFirst.get(t);
-				String tScaffoldKey = tFirst ? t : lastContigInScaffold;
-				if(res.usedContigs.contains(s))
+				Alignment rev = edge.reverse(edge.from);
+				rev.from = curName;
+				edges.addLast(rev);
+			}
+			cur = contig(entry);
+			contigs.addLast(contigNames.get(cur));
+			if(cur == state.last[root])
+			{
+				break;
+			}
+			exit = entry ^ 1;
+		}
+	}
+	
+	/*
+	 * Contigs and reads are referred to by index, in the order they are first added
+	 * Each end of a contig is a node, with the prefix of contig c being node 2c and its suffix node 2c+1
+	 */
+	HashMap<String, Integer> contigIds;
+	ArrayList<String> contigNames;
+	HashMap<String, Integer> readIds;
+	ArrayList<String> readNames;
+	
+	/*
+	 * One edge for each distinct pair of (from end, to end) joined by reads, in the order they were first seen, stored as parallel arrays
+	 * Each edge keeps the total weight and number of the reads supporting it, and the read coordinates of the first of those reads
+	 * Edge i is traversed forwards by half-edge 2i and in reverse by half-edge 2i+1, so the reverse of an edge is never stored
+	 */
+	int numEdges;
+	int[] edgeFrom, edgeTo;
+	int[] edgeRead, edgeFromEnd, edgeToStart, edgeReadLength;
+	double[] edgeWeight;
+	int[] edgeCount;
+	EdgeIndex edgeIds;
+	
+	/*
+	 * When the individual reads supporting each edge are needed, a log of (edge, read, read coordinates) in the order reads were added
+	 */
+	boolean keepReads;
+	int logSize;
+	int[] logEdge, logRead, logFromEnd, logToStart, logReadLength;
+	
+	/*
+	 * Compressed sparse row adjacency built once all edges are added
+	 * The half-edges out of node n which traverse their edge forwards are halfEdges[offsets[2n], offsets[2n+1]),
+	 * and those which traverse it in reverse are halfEdges[offsets[2n+1], offsets[2n+2]), each in the order the edges were added
+	 */
+	int[] offsets;
+	int[] halfEdges;
+	boolean frozen;
+	
+	/*
+	 * When the graph was loaded from a previous run, the solution found then, and the numbers of contigs and edges
+	 * and the support of each edge at the time, which tell which contigs reads added since then have touched
+	 */
+	Solution previous;
+	int baseNumContigs;
+	int[] baseEdgeCount;
+	
+	ScaffoldGraph(boolean keepReads)
+	{
+		contigIds = new HashMap<>();
+		contigNames = new ArrayList<>();
+		readIds = new HashMap<>();
+		readNames = new ArrayList<>();
+		numEdges = 0;
+		int capacity = 16;
+		edgeFrom = new int[capacity];
+		edgeTo = new int[capacity];
+		edgeRead = new int[capacity];
+		edgeFromEnd = new int[capacity];
+		edgeToStart = new int[capacity];
+		edgeReadLength = new int[capacity];
+		edgeWeight = new double[capacity];
+		edgeCount = new int[capacity];
+		edgeIds = new EdgeIndex();
+		this.keepReads = keepReads;
+		logSize = 0;
+		if(keepReads)
+		{
+			logEdge = new int[capacity];
+			logRead = new int[capacity];
+			logFromEnd = new int[capacity];
+			logToStart = new int[capacity];
+			logReadLength = new int[capacity];
+		}
+		frozen = false;
+		previous = null;
+	}
+	
+	/*
+	 * Adds the support of a read for an edge, adding the edge if this is the first read to support it
+	 */
+	void addEdge(String from, String to, String readName, int fromEnd, int toStart, int readLength, boolean fromPrefix, boolean toPrefix, double weight)
+	{
+		int fromNode = node(getId(contigIds, contigNames, from), fromPrefix), toNode = node(getId(contigIds, contigNames, to), toPrefix);
+		int read = getId(readIds, readNames, readName);
+		long key = ((long)fromNode << 32) | toNode;
+		int e = edgeIds.get(key);
+		if(e == -1)
+		{
+			e = numEdges;
+			edgeIds.put(key, e);
+			if(numEdges == edgeFrom.length)
+			{
+				int capacity = 2 * numEdges;
+				edgeFrom = Arrays.copyOf(edgeFrom, capacity);
+				edgeTo = Arrays.copyOf(edgeTo, capacity);
+				edgeRead = Arrays.copyOf(edgeRead, capacity);
+				edgeFromEnd = Arrays.copyOf(edgeFromEnd, capacity);
+				edgeToStart = Arrays.copyOf(edgeToStart, capacity);
+				edgeReadLength = Arrays.copyOf(edgeReadLength, capacity);
+				edgeWeight = Arrays.copyOf(edgeWeight, capacity);
+				edgeCount = Arrays.copyOf(edgeCount, capacity);
+			}
+			edgeFrom[e] = fromNode;
+			edgeTo[e] = toNode;
+			edgeRead[e] = read;
+			edgeFromEnd[e] = fromEnd;
+			edgeToStart[e] = toStart;
+			edgeReadLength[e] = readLength;
+			numEdges++;
+			frozen = false;
+		}
+		edgeWeight[e] += weight;
+		edgeCount[e]++;
+		
+		if(keepReads)
+		{
+			if(logSize == logEdge.length)
+			{
+				int capacity = 2 * logSize;
+				logEdge = Arrays.copyOf(logEdge, capacity);
+				logRead = Arrays.copyOf(logRead, capacity);
+				logFromEnd = Arrays.copyOf(logFromEnd, capacity);
+				logToStart = Arrays.copyOf(logToStart, capacity);
+				logReadLength = Arrays.copyOf(logReadLength, capacity);
+			}
+			logEdge[logSize] = e;
+			logRead[logSize] = read;
+			logFromEnd[logSize] = fromEnd;
+			logToStart[logSize] = toStart;
+			logReadLength[logSize] = readLength;
+			logSize++;
+		}
+	}
+	
+	/*
+	 * Adds the edges found by a worker, in the order it found them
+	 */
+	void addShard(EdgeShard shard)
+	{
+		for(int i = 0; i<shard.size; i++)
+		{
+			addEdge(shard.from[i], shard.to[i], shard.read[i], shard.fromEnd[i], shard.toStart[i], shard.readLength[i], 
+					shard.fromPrefix[i], shard.toPrefix[i], shard.weight[i]);
+		}
+	}
+	
+	/*
+	 * Edges found by one worker, not yet added to the graph
+	 * They are kept in the order they were found, so adding the shards in order gives the same graph as adding every edge directly
+	 */
+	static class EdgeShard
+	{
+		int size;
+		String[] from, to, read;
+		int[] fromEnd, toStart, readLength;
+		boolean[] fromPrefix, toPrefix;
+		double[] weight;
+		EdgeShard()
+		{
+			size = 0;
+			int capacity = 16;
+			from = new String[capacity];
+			to = new String[capacity];
+			read = new String[capacity];
+			fromEnd = new int[capacity];
+			toStart = new int[capacity];
+			readLength = new int[capacity];
+			fromPrefix = new boolean[capacity];
+			toPrefix = new boolean[capacity];
+			weight = new double[capacity];
+		}
+		void addEdge(String from, String to, String readName, int fromEnd, int toStart, int readLength, boolean fromPrefix, boolean toPrefix, double weight)
+		{
+			if(size == this.from.length)
+			{
+				int capacity = 2 * size;
+				this.from = Arrays.copyOf(this.from, capacity);
+				this.to = Arrays.copyOf(this.to, capacity);
+				this.read = Arrays.copyOf(this.read, capacity);
+				this.fromEnd = Arrays.copyOf(this.fromEnd, capacity);
+				this.toStart = Arrays.copyOf(this.toStart, capacity);
+				this.readLength = Arrays.copyOf(this.readLength, capacity);
+				this.fromPrefix = Arrays.copyOf(this.fromPrefix, capacity);
+				this.toPrefix = Arrays.copyOf(this.toPrefix, capacity);
+				this.weight = Arrays.copyOf(this.weight, capacity);
+			}
+			this.from[size] = from;
+			this.to[size] = to;
+			this.read[size] = readName;
+			this.fromEnd[size] = fromEnd;
+			this.toStart[size] = toStart;
+			this.readLength[size] = readLength;
+			this.fromPrefix[size] = fromPrefix;
+			this.toPrefix[size] = toPrefix;
+			this.weight[size] = weight;
+			size++;
+		}
+	}
+	
+	/*
+	 * A map from (from node, to node) keys to edge ids, using open addressing with linear probing over primitive arrays
+	 * Keys are never negative since node ids aren't, so -1 marks an empty slot
+	 */
+	static class EdgeIndex
+	{
+		int size;
+		long[] keys;
+		int[] values;
+		
+		EdgeIndex()
+		{
+			size = 0;
+			keys = new long[16];
+			values = new int[16];
+			Arrays.fill(keys, -1);
+		}
+		
+		/*
+		 * The slot holding a key, or the empty slot where it would go
+		 */
+		int slot(long key)
+		{
+			int mask = keys.length - 1;
+			int i = (int)((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+			while(keys[i] != -1 && keys[i] != key)
+			{
+				i = (i + 1) & mask;
+			}
+			return i;
+		}
+		
+		/*
+		 * The edge id of a key, or -1 if it has not been added
+		 */
+		int get(long key)
+		{
+			int i = slot(key);
+			return keys[i] == -1 ? -1 : values[i];
+		}
+		
+		void put(long key, int value)
+		{
+			int i = slot(key);
+			if(keys[i] == -1)
+			{
+				// Keep the table at most half full so probes stay short
+				if(2 * (size + 1) > keys.length)
 				{
-					if(Settings.VERBOSE)
-					{
-						System.err.println("  From one scaffold to another");
-					}
-					// s is the last contig in a scaffold, so append the scaffold with to after s
-					String firstContigInScaffold = lastToFirst.get(s);
-					lastToFirst.remove(s);
-					lastToFirst.put(lastContigInScaffold, firstContigInScaffold);
-					res.scaffoldEdges.get(firstContigInScaffold).addLast(best);
-					ArrayDeque<ScaffoldGraph.Alignment> tScaffoldEdges = res.scaffoldEdges.get(tScaffoldKey);
-					if(tFirst)
-					{
-						while(!tScaffoldEdges.isEmpty())
-						{
-							ScaffoldGraph.Alignment cur = tScaffoldEdges.pollFirst();
-							res.scaffoldEdges.get(firstContigInScaffold).addLast(cur);
-						}
-					}
-					else
-					{
-						String lastTo = tScaffoldKey;
-						ArrayDeque<ScaffoldGraph.Alignment> toAdd = new ArrayDeque<ScaffoldGraph.Alignment>();
-						while(!tScaffoldEdges.isEmpty())
-						{
-							ScaffoldGraph.Alignment cur = tScaffoldEdges.pollFirst();
-							Alignment rev = cur.reverse(lastTo);
-							rev.from = cur.to;
-							toAdd.addLast(rev);
-							lastTo = cur.to;
-						}
-						while(!toAdd.isEmpty())
-						{
-							res.scaffoldEdges.get(firstContigInScaffold).addLast(toAdd.pollLast());
-						}
-					}
-					
-					res.scaffoldEdges.remove(tScaffoldKey);
-					
-					ArrayDeque<String> tScaffoldContigs = res.scaffoldContigs.get(tScaffoldKey);
-					while(!tScaffoldContigs.isEmpty())
-					{
-						res.scaffoldContigs.get(firstContigInScaffold).addLast(tFirst ? tScaffoldContigs.pollFirst() : tScaffoldContigs.pollLast());
-					}
-					res.scaffoldContigs.remove(tScaffoldKey);
-					if(!tFirst)
-					{
-						lastToFirst.remove(t);
-					}
+					grow();
+					i = slot(key);
 				}
-				else
+				keys[i] = key;
+				size++;
+			}
+			values[i] = value;
+		}
+		
+		void grow()
+		{
+			long[] oldKeys = keys;
+			int[] oldValues = values;
+			keys = new long[2 * oldKeys.length];
+			values = new int[2 * oldKeys.length];
+			Arrays.fill(keys, -1);
+			for(int j = 0; j<oldKeys.length; j++)
+			{
+				if(oldKeys[j] != -1)
 				{
-					if(Settings.VERBOSE)
-					{
-						System.err.println("  From lone contig to a larger scaffold");
-					}
-					// s is on its own, so add it to the beginning of the scaffold with t
-					if(tFirst)
-					{
-						res.scaffoldEdges.put(s, res.scaffoldEdges.get(t));
-						res.scaffoldEdges.get(s).addFirst(best);
-						res.scaffoldEdges.remove(t);
-						res.scaffoldContigs.put(s, res.scaffoldContigs.get(t));
-						res.scaffoldContigs.get(s).addFirst(s);
-						res.scaffoldContigs.remove(t);
-						lastToFirst.put(lastContigInScaffold, s);
-					}
-					else
-					{
-						// t is at the end of its scaffold, so reverse scaffold and add it to new scaffold
-						
-						// Deal with edges
-						res.scaffoldEdges.put(s, new ArrayDeque<ScaffoldGraph.Alignment>());
-						res.scaffoldEdges.get(s).addFirst(best);
-						String lastTo = tScaffoldKey;
-						ArrayDeque<ScaffoldGraph.Alignment> toAdd = new ArrayDeque<ScaffoldGraph.Alignment>();
-						while(!res.scaffoldEdges.get(tScaffoldKey).isEmpty())
-						{
-							ScaffoldGraph.Alignment cur = res.scaffoldEdges.get(tScaffoldKey).pollFirst();
-							Alignment rev = cur.reverse(lastTo);
-							rev.from = cur.to;
-							toAdd.addLast(rev);
-							lastTo = cur.to;
-						}
-						while(!toAdd.isEmpty())
-						{
-							res.scaffoldEdges.get(s).addLast(toAdd.pollLast());
-						}
-						res.scaffoldEdges.remove(tScaffoldKey);
-						
-						// Deal with list of contigs
-						res.scaffoldContigs.put(s, new ArrayDeque<String>());
-						res.scaffoldContigs.get(s).addFirst(s);
-						while(!res.scaffoldContigs.get(tScaffoldKey).isEmpty())
-						{
-							res.scaffoldContigs.get(s).addLast(res.scaffoldContigs.get(tScaffoldKey).pollLast());
-						}
-						res.scaffoldContigs.remove(tScaffoldKey);
-						
-						// Deal with lastToFirst
-						lastToFirst.remove(t);
-						lastToFirst.put(tScaffoldKey, s);
-					}
-					res.usedContigs.add(s);					
+					int i = slot(oldKeys[j]);
+					keys[i] = oldKeys[j];
+					values[i] = oldValues[j];
 				}
 			}
-			
-			res.numMerged++;
-			
 		}
-
+	}
+	
+	/*
+	 * For each edge, the positions in the read log of the reads supporting it, in the order they were added
+	 */
+	int[][] getReadsPerEdge()
+	{
+		int[][] res = new int[numEdges][];
+		for(int e = 0; e<numEdges; e++)
+		{
+			res[e] = new int[edgeCount[e]];
+		}
+		int[] filled = new int[numEdges];
+		for(int i = 0; i<logSize; i++)
+		{
+			res[logEdge[i]][filled[logEdge[i]]++] = i;
+		}
 		return res;
 	}
 	
-	HashMap<String,ArrayList<Alignment>[]> adj;
-	ScaffoldGraph()
+	/*
+	 * Gets the index of a name, giving it the next one if it hasn't been seen before
+	 */
+	static int getId(HashMap<String, Integer> ids, ArrayList<String> names, String name)
+	{
+		Integer id = ids.get(name);
+		if(id == null)
+		{
+			id = names.size();
+			ids.put(name, id);
+			names.add(name);
+		}
+		return id;
+	}
+	
+	static int node(int contig, boolean prefix)
 	{
-		adj =  new HashMap<>();
+		return 2 * contig + (prefix ? 0 : 1);
 	}
-	@SuppressWarnings("unchecked")
-	void addEdge(String from, String to, String readName, int fromEnd, int toStart, int readLength, boolean fromPrefix, boolean toPrefix, double weight)
+	
+	static int contig(int node)
+	{
+		return node >> 1;
+	}
+	
+	static boolean isPrefix(int node)
 	{
-		String[] contigs = new String[] {from, to};
-		for(String key : contigs)
+		return (node & 1) == 0;
+	}
+	
+	/*
+	 * Builds the adjacency arrays with a counting sort of the half-edges by the node they leave from and their direction
+	 */
+	void freeze()
+	{
+		if(frozen)
+		{
+			return;
+		}
+		offsets = new int[4 * contigNames.size() + 1];
+		for(int h = 0; h<2*numEdges; h++)
+		{
+			offsets[bucket(h) + 1]++;
+		}
+		for(int i = 1; i<offsets.length; i++)
+		{
+			offsets[i] += offsets[i-1];
+		}
+		halfEdges = new int[2 * numEdges];
+		int[] next = Arrays.copyOf(offsets, offsets.length - 1);
+		for(int h = 0; h<2*numEdges; h++)
 		{
-			if(!adj.containsKey(key))
+			halfEdges[next[bucket(h)]++] = h;
+		}
+		frozen = true;
+	}
+	
+	int bucket(int h)
+	{
+		return 2 * source(h) + (h & 1);
+	}
+	
+	static boolean isReverse(int h)
+	{
+		return (h & 1) == 1;
+	}
+	
+	/*
+	 * The node a half-edge leaves from
+	 */
+	int source(int h)
+	{
+		return isReverse(h) ? edgeTo[h>>1] : edgeFrom[h>>1];
+	}
+	
+	/*
+	 * The node a half-edge goes to
+	 */
+	int target(int h)
+	{
+		return isReverse(h) ? edgeFrom[h>>1] : edgeTo[h>>1];
+	}
+	
+	/*
+	 * Where the read leaves the source contig, in the coordinates of the strand of the read the half-edge follows
+	 */
+	int myReadEnd(int h)
+	{
+		int e = h >> 1;
+		return isReverse(h) ? edgeReadLength[e] - edgeToStart[e] : edgeFromEnd[e];
+	}
+	
+	/*
+	 * Where the read reaches the target contig, in the coordinates of the strand of the read the half-edge follows
+	 */
+	int theirReadStart(int h)
+	{
+		int e = h >> 1;
+		return isReverse(h) ? edgeReadLength[e] - edgeFromEnd[e] : edgeToStart[e];
+	}
+	
+	/*
+	 * Gets the edges out of a contig which were added with it as their source, in the order they were added
+	 */
+	int[] getForwardEdges(int contig)
+	{
+		freeze();
+		int prefixStart = offsets[4 * contig], prefixEnd = offsets[4 * contig + 1];
+		int suffixStart = offsets[4 * contig + 2], suffixEnd = offsets[4 * contig + 3];
+		int[] res = new int[prefixEnd - prefixStart + suffixEnd - suffixStart];
+		
+		// Merge the edges out of each end by when they were added
+		int i = prefixStart, j = suffixStart;
+		for(int k = 0; k<res.length; k++)
+		{
+			if(j == suffixEnd || (i < prefixEnd && halfEdges[i] < halfEdges[j]))
 			{
-				adj.put(key, new ArrayList[2]);
-				for(int i = 0; i<adj.get(key).length; i++)
-				{
-					adj.get(key)[i] = new ArrayList<>();
-				}
+				res[k] = halfEdges[i++] >> 1;
+			}
+			else
+			{
+				res[k] = halfEdges[j++] >> 1;
 			}
 		}
-				
-		// Add forward edge
-		Alignment al = new Alignment(to, readName, fromEnd, toStart, fromPrefix, toPrefix, 0, weight, readLength);
-		adj.get(from)[0].add(al);
-		
-		// Add reverse edge
-		adj.get(to)[1].add(al.reverse(from));
+		return res;
+	}
+	
+	/*
+	 * Builds the alignment object for a half-edge, as used when scaffolding
+	 */
+	Alignment getAlignment(int h, double weight)
+	{
+		int e = h >> 1;
+		Alignment res = new Alignment(contigNames.get(contig(target(h))), readNames.get(edgeRead[e]), myReadEnd(h), theirReadStart(h),
+				isPrefix(source(h)), isPrefix(target(h)), isReverse(h) ? 1 : 0, weight, edgeReadLength[e]);
+		res.from = contigNames.get(contig(source(h)));
+		return res;
 	}
 	
 
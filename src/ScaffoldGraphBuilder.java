@@ -2,145 +2,269 @@ import java.util.*;
 
 public class ScaffoldGraphBuilder {
 	
-	static boolean stillValid(ScaffoldGraph.Alignment sga, ScaffoldGraph.Scaffolding curScaffolds, HashMap<String, String> lastToFirst)
+	/*
+	 * Whether an edge from contig s to the given end of contig t can still be added to the scaffolds built so far
+	 */
+	static boolean stillValid(int s, int t, boolean theirContigPrefix, ScaffoldGraph.ScaffoldState state)
 	{
-		HashSet<String> usedContigs = curScaffolds.usedContigs;
-		HashMap<String, ArrayDeque<ScaffoldGraph.Alignment>> scaffoldEdges = curScaffolds.scaffoldEdges;
-		String to = sga.to;
-		String from = sga.from;
-		
 		// Make sure from is end of its scaffold
-		if(usedContigs.contains(from) && !lastToFirst.containsKey(from))
+		if(state.isUsed(s) && !state.isLast(s))
 		{
 			return false;
 		}
 		
-		// Make sure the destination is on one of the ends of its scaffold
-		if(usedContigs.contains(to) && !scaffoldEdges.containsKey(to) && !lastToFirst.containsKey(to))
+		if(state.isUsed(t))
 		{
-			return false;
+			// Make sure the destination is on one of the ends of its scaffold
+			if(!state.isFirst(t) && !state.isLast(t))
+			{
+				return false;
+			}
+			
+			// Make sure that the destination isn't the other end of the scaffold the edge is coming from
+			if(state.find(s) == state.find(t))
+			{
+				return false;
+			}
+			
+			// Make sure this edge doesn't use the same side of the destination as an existing edge
+			if(state.isOccupied(ScaffoldGraph.node(t, theirContigPrefix)))
+			{
+				return false;
+			}
 		}
-					
-		// Make sure that the destination isn't the beginning of the scaffold the edge is coming from
-		if(scaffoldEdges.containsKey(to) && scaffoldEdges.get(to).peekLast().to.equals(from))
+		return true;
+	}
+	
+	/*
+	 * The consensus edges of a scaffold graph, stored as parallel arrays and sorted once by weight
+	 */
+	static class ConsensusEdges
+	{
+		ScaffoldGraph sg;
+		int size;
+		
+		// The first edge added to each group, whose values the consensus takes, and the total weight of the group
+		int[] representative;
+		double[] weight;
+		
+		// The half-edges in group i are members[memberStart[i], memberStart[i+1])
+		int[] memberStart, members;
+		
+		// The order to try the edges in - decreasing weight, with ties going first to edges which follow the direction
+		// their reads were added in, and then broken by source contig, target contig, and source end
+		int[] order;
+		
+		// For each edge, the positions in the graph's read log of the reads supporting it, if the graph keeps them
+		int[][] readsPerEdge;
+		
+		/*
+		 * An empty list with room for the consensus of a given number of half-edges
+		 */
+		ConsensusEdges(ScaffoldGraph sg, int capacity)
 		{
-			return false;
+			this.sg = sg;
+			size = 0;
+			representative = new int[capacity];
+			weight = new double[capacity];
+			memberStart = new int[capacity + 1];
+			members = new int[capacity];
 		}
-					
-		// Make sure that the destination isn't the end of the scaffold the edge is coming from
-		if(lastToFirst.containsKey(to) && lastToFirst.get(to).equals(from))
+		
+		/*
+		 * Adds all of the edges in another list to the end of this one
+		 */
+		void append(ConsensusEdges other)
 		{
-			return false;
+			int numMembers = memberStart[size];
+			System.arraycopy(other.representative, 0, representative, size, other.size);
+			System.arraycopy(other.weight, 0, weight, size, other.size);
+			System.arraycopy(other.members, 0, members, numMembers, other.memberStart[other.size]);
+			for(int i = 1; i<=other.size; i++)
+			{
+				memberStart[size + i] = numMembers + other.memberStart[i];
+			}
+			size += other.size;
 		}
 		
-		// Make sure this edge doesn't use the same side of the destination as an existing edge
-		if(scaffoldEdges.containsKey(to) && scaffoldEdges.get(to).peekFirst().myContigPrefix == sga.theirContigPrefix)
+		/*
+		 * Sorts the edges by decreasing weight, then by direction, and then by the order they were added in
+		 * The weights are all positive, so comparing their bits as longs orders them the same way as comparing them as doubles
+		 */
+		void sort()
 		{
-			return false;
+			long[] weightBits = new long[size];
+			for(int i = 0; i<size; i++)
+			{
+				weightBits[i] = Double.doubleToLongBits(weight[i]);
+			}
+			Arrays.parallelSort(weightBits);
+			
+			// Rank each edge by how many edges have a greater weight, and sort by rank, direction and then index
+			long[] keys = new long[size];
+			for(int i = 0; i<size; i++)
+			{
+				long rank = size - upperBound(weightBits, Double.doubleToLongBits(weight[i]));
+				long direction = representative[i] & 1;
+				keys[i] = (rank << 33) | (direction << 32) | i;
+			}
+			Arrays.parallelSort(keys);
+			order = new int[size];
+			for(int i = 0; i<size; i++)
+			{
+				order[i] = (int)keys[i];
+			}
 		}
-		if(lastToFirst.containsKey(to) && scaffoldEdges.get(lastToFirst.get(to)).peekLast().theirContigPrefix == sga.theirContigPrefix)
+		
+		/*
+		 * Builds the alignment object for a consensus edge, including the intervals of all of its reads if the graph keeps them
+		 */
+		ScaffoldGraph.Alignment getAlignment(int i)
 		{
-			return false;
+			ScaffoldGraph.Alignment res = sg.getAlignment(representative[i], weight[i]);
+			if(readsPerEdge != null)
+			{
+				int numReads = 0;
+				for(int j = memberStart[i]; j<memberStart[i+1]; j++)
+				{
+					numReads += readsPerEdge[members[j] >> 1].length;
+				}
+				int[] reads = new int[numReads];
+				numReads = 0;
+				for(int j = memberStart[i]; j<memberStart[i+1]; j++)
+				{
+					int[] cur = readsPerEdge[members[j] >> 1];
+					System.arraycopy(cur, 0, reads, numReads, cur.length);
+					numReads += cur.length;
+				}
+				Arrays.sort(reads);
+				boolean reverse = ScaffoldGraph.isReverse(representative[i]);
+				for(int r : reads)
+				{
+					int readLength = sg.logReadLength[r];
+					ScaffoldGraph.ReadInterval ri = new ScaffoldGraph.ReadInterval(sg.readNames.get(sg.logRead[r]), 
+							reverse ? readLength - sg.logToStart[r] : sg.logFromEnd[r], reverse ? readLength - sg.logFromEnd[r] : sg.logToStart[r], 
+							res.from, res.to, reverse ? 1 : 0, readLength);
+					if(Settings.VERBOSE)
+					{
+						System.err.println("Adding read interval (from " + (res.myContigPrefix ? "prefix" : "suffix") + "): " + ri.readName
+								+ " " + ri.from + " " + ri.to + " " + ri.start + " " + ri.end);
+					}
+					res.allReads.add(ri);
+				}
+			}
+			return res;
 		}
-		return true;
 	}
 	
-	static PriorityQueue<ScaffoldGraph.Alignment> getAllSortedEdges(ScaffoldGraph sg)
+	/*
+	 * The number of elements of a sorted array which are less than or equal to a value
+	 */
+	static int upperBound(long[] a, long val)
 	{
-		PriorityQueue<ScaffoldGraph.Alignment> res = new PriorityQueue<>();
-		for(String s : sg.adj.keySet())
+		int lo = 0, hi = a.length;
+		while(lo < hi)
 		{
-			if(Settings.VERBOSE)
+			int mid = (lo + hi) >>> 1;
+			if(a[mid] <= val)
 			{
-				System.err.println("Searching for edges from " + s);
+				lo = mid + 1;
 			}
-			for(int strand = 0; strand < 2; strand++)
+			else
 			{
-				ArrayList<ScaffoldGraph.Alignment> als = sg.adj.get(s)[strand];
-				HashMap<String, ArrayList<ScaffoldGraph.Alignment>> prefEdges = new HashMap<>();
-				HashMap<String, ArrayList<ScaffoldGraph.Alignment>> suffEdges = new HashMap<>();
-				for(ScaffoldGraph.Alignment a : als)
-				{
-					if(a.myContigPrefix)
-					{
-						ReadUtils.addToMap(prefEdges, a.to, a);
-					}
-					else
-					{
-						ReadUtils.addToMap(suffEdges, a.to, a);
-					}
-				}
-				
-				for(String to : prefEdges.keySet())
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+	
+	/*
+	 * Gets a consensus edge for each group of edges which leave the same end of a contig in the same direction and go to the same contig
+	 * The consensus has the total weight of the group, and otherwise takes its values from the first edge added to the group
+	 * Consensus edges which are too light to ever be used in a scaffold are left out
+	 * Ranges of contigs are processed in parallel, each into its own buffer, and the buffers are combined in contig order
+	 */
+	static ConsensusEdges getAllSortedEdges(ScaffoldGraph sg) throws Exception
+	{
+		sg.freeze();
+		int numContigs = sg.contigNames.size();
+		int numChunks = Math.max(1, Math.min(numContigs, 4 * Settings.THREADS));
+		ConsensusEdges[] chunks = new ConsensusEdges[numChunks];
+		StringBuilder[] logs = new StringBuilder[numChunks];
+		ScaffoldGraph.parallelFor(numChunks, c -> {
+			int firstContig = (int)((long)numContigs * c / numChunks), lastContig = (int)((long)numContigs * (c+1) / numChunks);
+			logs[c] = Settings.VERBOSE ? new StringBuilder() : null;
+			chunks[c] = getConsensusEdges(sg, firstContig, lastContig, logs[c]);
+		});
+		
+		ConsensusEdges res = new ConsensusEdges(sg, 2 * sg.numEdges);
+		for(int c = 0; c<numChunks; c++)
+		{
+			if(logs[c] != null)
+			{
+				System.err.print(logs[c]);
+			}
+			res.append(chunks[c]);
+		}
+		res.readsPerEdge = sg.keepReads ? sg.getReadsPerEdge() : null;
+		res.sort();
+		return res;
+	}
+	
+	/*
+	 * Gets the consensus edges out of a range of contigs
+	 */
+	static ConsensusEdges getConsensusEdges(ScaffoldGraph sg, int firstContig, int lastContig, StringBuilder log)
+	{
+		ConsensusEdges res = new ConsensusEdges(sg, sg.offsets[4 * lastContig] - sg.offsets[4 * firstContig]);
+		int numMembers = 0;
+		for(int contig = firstContig; contig < lastContig; contig++)
+		{
+			if(log != null)
+			{
+				log.append("Searching for edges from " + sg.contigNames.get(contig) + "\n");
+			}
+			
+			// Sort the half-edges out of this contig by target contig, then source end, then direction, then when they were added
+			int start = sg.offsets[4 * contig], end = sg.offsets[4 * contig + 4];
+			long[] keys = new long[end - start];
+			for(int i = start; i<end; i++)
+			{
+				int h = sg.halfEdges[i];
+				int side = (ScaffoldGraph.isPrefix(sg.source(h)) ? 0 : 2) + (ScaffoldGraph.isReverse(h) ? 1 : 0);
+				keys[i - start] = ((long)ScaffoldGraph.contig(sg.target(h)) << 33) | ((long)side << 31) | h;
+			}
+			Arrays.sort(keys);
+			
+			// Each run of equal target, source end, and direction is a group
+			for(int i = 0; i<keys.length; )
+			{
+				int j = i;
+				double totalWeight = 0;
+				while(j < keys.length && (keys[j] >>> 31) == (keys[i] >>> 31))
 				{
-					ArrayList<ScaffoldGraph.Alignment> al = prefEdges.get(to);
-					ArrayList<ScaffoldGraph.Alignment> valid = new ArrayList<>();
-					double totalWeight = 0;
-					ArrayList<ScaffoldGraph.ReadInterval> intervals = new ArrayList<ScaffoldGraph.ReadInterval>();
-					for(ScaffoldGraph.Alignment a : al)
-					{
-						totalWeight += a.weight;
-						valid.add(a);
-						a.from = s;
-						ScaffoldGraph.ReadInterval ri = new ScaffoldGraph.ReadInterval(a);
-						if(Settings.VERBOSE)
-						{
-							System.err.println("Adding read interval (from prefix): " + ri.readName
-									+ " " + ri.from + " " + ri.to + " " + ri.start + " " + ri.end);
-						}
-						intervals.add(ri);
-					}
-					
-					if(valid.size() > 0)
-					{
-						ScaffoldGraph.Alignment toAdd = valid.get(0);
-						toAdd.from = s;
-						toAdd.weight = totalWeight;
-						toAdd.allReads = intervals;
-						if(Settings.VERBOSE)
-						{
-							System.err.println("Adding consensus edge to graph: ");
-							System.err.println(" from=" + toAdd.from + ", myContigPrefix=" + toAdd.myContigPrefix +
-									", to=" + toAdd.to + ", theirContigPrefix=" + toAdd.theirContigPrefix);
-						}
-						res.add(toAdd);
-					}
-					
+					int h = (int)(keys[j] & Integer.MAX_VALUE);
+					totalWeight += sg.edgeWeight[h >> 1];
+					res.members[numMembers + j - i] = h;
+					j++;
 				}
-				for(String to : suffEdges.keySet())
+				if(totalWeight >= Settings.MIN_WEIGHT_SUPPORT)
 				{
-					ArrayList<ScaffoldGraph.Alignment> valid = new ArrayList<>();
-					ArrayList<ScaffoldGraph.Alignment> al = suffEdges.get(to);
-					double totalWeight = 0;
-					ArrayList<ScaffoldGraph.ReadInterval> intervals = new ArrayList<ScaffoldGraph.ReadInterval>();
-					for(ScaffoldGraph.Alignment a : al)
-					{
-						totalWeight += a.weight;
-						valid.add(a);
-						a.from = s;
-						ScaffoldGraph.ReadInterval ri = new ScaffoldGraph.ReadInterval(a);
-						if(Settings.VERBOSE)
-						{
-							System.err.println("Adding read interval (from suffix): " + ri.readName
-									+ " " + ri.from + " " + ri.to + " " + ri.start + " " + ri.end);
-						}
-						intervals.add(ri);
-					}
-					if(valid.size() > 0)
+					res.representative[res.size] = res.members[numMembers];
+					res.weight[res.size] = totalWeight;
+					res.memberStart[res.size] = numMembers;
+					numMembers += j - i;
+					res.size++;
+					res.memberStart[res.size] = numMembers;
+					if(log != null)
 					{
-						ScaffoldGraph.Alignment toAdd = valid.get(0);
-						toAdd.from = s;
-						toAdd.weight = totalWeight;
-						toAdd.allReads = intervals;
-						if(Settings.VERBOSE)
-						{
-							System.err.println("Adding consensus edge to graph: ");
-							System.err.println(" from=" + toAdd.from + ", myContigPrefix=" + toAdd.myContigPrefix +
-									", to=" + toAdd.to + ", theirContigPrefix=" + toAdd.theirContigPrefix);
-						}
-						res.add(toAdd);
+						int h = res.representative[res.size - 1];
+						log.append("Adding consensus edge to graph: \n");
+						log.append(" from=" + sg.contigNames.get(contig) + ", myContigPrefix=" + ScaffoldGraph.isPrefix(sg.source(h)) +
+								", to=" + sg.contigNames.get(ScaffoldGraph.contig(sg.target(h))) + ", theirContigPrefix=" + ScaffoldGraph.isPrefix(sg.target(h)) + "\n");
 					}
 				}
+				i = j;
 			}
 		}
 		return res;
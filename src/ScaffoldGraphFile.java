@@ -0,0 +1,255 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/*
+ * A binary file holding an aggregated scaffold graph and the joins found in it, so that reads from later sequencing runs
+ * can be added to it without going back over the alignments of the earlier ones
+ *
+ * Layout: magic, a fingerprint of the contigs file and of the parameters which decide which edges are added, the contigs
+ *   which appeared in any alignment chain, the contig and read names, the edges, the read log, and then the solution
+ */
+public class ScaffoldGraphFile {
+
+	// "GRFTGRF1"
+	static final long MAGIC = 0x4752465447524631L;
+
+	/*
+	 * The parameters which change which edges are added or how much weight they get
+	 */
+	static double[] edgeParameters()
+	{
+		return new double[] {Settings.MIN_QUALITY, Settings.MIN_ALIGNMENT_LENGTH, Settings.MIN_WEIGHT, Settings.MAX_GAP,
+				Settings.MAX_GAP_BETWEEN_CONTIGS, Settings.MAX_HANGING, Settings.MAX_HANGING_PROP};
+	}
+
+	/*
+	 * Writes a graph along with the joins made in it and the names of the contigs relevant to the reads it was built from
+	 * In incremental mode the file being replaced is the graph that was loaded, so it is written to a temporary file and moved into place
+	 * once it is complete, leaving the old graph intact if the run dies partway through
+	 */
+	static void write(String fn, ScaffoldGraph sg, ScaffoldGraph.Solution solution, HashSet<String> relevantContigs) throws IOException
+	{
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fn + ".tmp"), 1 << 20));
+		out.writeLong(MAGIC);
+		File source = new File(Settings.fastaFn);
+		out.writeUTF(source.getAbsolutePath());
+		out.writeLong(source.length());
+		out.writeLong(source.lastModified());
+		double[] parameters = edgeParameters();
+		out.writeInt(parameters.length);
+		for(double x : parameters)
+		{
+			out.writeDouble(x);
+		}
+		out.writeDouble(Settings.MIN_WEIGHT_SUPPORT);
+
+		out.writeInt(relevantContigs.size());
+		for(String s : relevantContigs)
+		{
+			out.writeUTF(s);
+		}
+		writeGraph(out, sg);
+
+		out.writeInt(solution.partner.length);
+		writeInts(out, solution.partner, solution.partner.length);
+		writeInts(out, solution.joinHalfEdge, solution.partner.length);
+		out.writeInt(solution.scaffoldFirst.length);
+		for(int[] a : new int[][] {solution.scaffoldFirst, solution.scaffoldLast, solution.scaffoldCreatedBy})
+		{
+			writeInts(out, a, solution.scaffoldFirst.length);
+		}
+		out.close();
+		Files.move(new File(fn + ".tmp").toPath(), new File(fn).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/*
+	 * Writes the names, edges, and read log of a graph
+	 */
+	static void writeGraph(DataOutputStream out, ScaffoldGraph sg) throws IOException
+	{
+		out.writeBoolean(sg.keepReads);
+		writeNames(out, sg.contigNames);
+		writeNames(out, sg.readNames);
+
+		out.writeInt(sg.numEdges);
+		for(int[] a : new int[][] {sg.edgeFrom, sg.edgeTo, sg.edgeRead, sg.edgeFromEnd, sg.edgeToStart, sg.edgeReadLength, sg.edgeCount})
+		{
+			writeInts(out, a, sg.numEdges);
+		}
+		for(int e = 0; e<sg.numEdges; e++)
+		{
+			out.writeDouble(sg.edgeWeight[e]);
+		}
+
+		if(sg.keepReads)
+		{
+			out.writeInt(sg.logSize);
+			for(int[] a : new int[][] {sg.logEdge, sg.logRead, sg.logFromEnd, sg.logToStart, sg.logReadLength})
+			{
+				writeInts(out, a, sg.logSize);
+			}
+		}
+	}
+
+	static void writeNames(DataOutputStream out, ArrayList<String> names) throws IOException
+	{
+		out.writeInt(names.size());
+		for(String s : names)
+		{
+			out.writeUTF(s);
+		}
+	}
+
+	static void writeInts(DataOutputStream out, int[] a, int n) throws IOException
+	{
+		for(int i = 0; i<n; i++)
+		{
+			out.writeInt(a[i]);
+		}
+	}
+
+	/*
+	 * Reads a graph written by write(), adding the names of its relevant contigs to the given set
+	 * The graph remembers its previous solution and how much support each edge had, so later scaffolding can tell which components have changed
+	 * Throws an exception if the graph was built from a different contigs file or with different parameters, since its edges could not be added to
+	 */
+	static ScaffoldGraph read(String fn, HashSet<String> relevantContigs) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fn), 1 << 20));
+		try {
+			if(in.readLong() != MAGIC)
+			{
+				throw new IOException("Scaffold graph " + fn + " is not in the current format");
+			}
+			File source = new File(Settings.fastaFn);
+			String sourcePath = in.readUTF();
+			long sourceLength = in.readLong(), sourceModified = in.readLong();
+			if(!sourcePath.equals(source.getAbsolutePath()) || sourceLength != source.length() || sourceModified != source.lastModified())
+			{
+				throw new IOException("Scaffold graph " + fn + " was built from a different contigs file than " + Settings.fastaFn);
+			}
+			double[] parameters = edgeParameters();
+			int numParameters = in.readInt();
+			boolean sameParameters = numParameters == parameters.length;
+			for(int i = 0; i<numParameters; i++)
+			{
+				sameParameters &= i < parameters.length && in.readDouble() == parameters[i];
+			}
+			if(!sameParameters)
+			{
+				throw new IOException("Scaffold graph " + fn + " was built with different alignment filtering or edge weight parameters");
+			}
+			boolean sameSupport = in.readDouble() == Settings.MIN_WEIGHT_SUPPORT;
+
+			int numRelevant = in.readInt();
+			for(int i = 0; i<numRelevant; i++)
+			{
+				relevantContigs.add(in.readUTF());
+			}
+
+			ScaffoldGraph sg = readGraph(in);
+
+			ScaffoldGraph.Solution solution = new ScaffoldGraph.Solution();
+			int numNodes = in.readInt();
+			solution.partner = readInts(in, numNodes, numNodes);
+			solution.joinHalfEdge = readInts(in, numNodes, numNodes);
+			int numScaffolds = in.readInt();
+			solution.scaffoldFirst = readInts(in, numScaffolds, numScaffolds);
+			solution.scaffoldLast = readInts(in, numScaffolds, numScaffolds);
+			solution.scaffoldCreatedBy = readInts(in, numScaffolds, numScaffolds);
+
+			// The joins only stay valid if edges need the same support to be used
+			if(sameSupport)
+			{
+				sg.previous = solution;
+			}
+			else
+			{
+				System.err.println("Scaffold graph " + fn + " was solved with a different min_weight_supp, so all of it will be solved again");
+			}
+			sg.baseNumContigs = sg.contigNames.size();
+			sg.baseEdgeCount = Arrays.copyOf(sg.edgeCount, sg.numEdges);
+			return sg;
+		} finally {
+			in.close();
+		}
+	}
+
+	/*
+	 * Reads a graph written by writeGraph()
+	 */
+	static ScaffoldGraph readGraph(DataInputStream in) throws IOException
+	{
+		ScaffoldGraph sg = new ScaffoldGraph(in.readBoolean());
+		readNames(in, sg.contigIds, sg.contigNames);
+		readNames(in, sg.readIds, sg.readNames);
+
+		// The graph grows its arrays by doubling, so they need room for at least one element
+		int numEdges = in.readInt();
+		int edgeCapacity = Math.max(numEdges, 16);
+		sg.numEdges = numEdges;
+		sg.edgeFrom = readInts(in, numEdges, edgeCapacity);
+		sg.edgeTo = readInts(in, numEdges, edgeCapacity);
+		sg.edgeRead = readInts(in, numEdges, edgeCapacity);
+		sg.edgeFromEnd = readInts(in, numEdges, edgeCapacity);
+		sg.edgeToStart = readInts(in, numEdges, edgeCapacity);
+		sg.edgeReadLength = readInts(in, numEdges, edgeCapacity);
+		sg.edgeCount = readInts(in, numEdges, edgeCapacity);
+		sg.edgeWeight = new double[edgeCapacity];
+		for(int e = 0; e<numEdges; e++)
+		{
+			sg.edgeWeight[e] = in.readDouble();
+		}
+		for(int e = 0; e<numEdges; e++)
+		{
+			sg.edgeIds.put(((long)sg.edgeFrom[e] << 32) | sg.edgeTo[e], e);
+		}
+
+		if(sg.keepReads)
+		{
+			int logSize = in.readInt();
+			int logCapacity = Math.max(logSize, 16);
+			sg.logSize = logSize;
+			sg.logEdge = readInts(in, logSize, logCapacity);
+			sg.logRead = readInts(in, logSize, logCapacity);
+			sg.logFromEnd = readInts(in, logSize, logCapacity);
+			sg.logToStart = readInts(in, logSize, logCapacity);
+			sg.logReadLength = readInts(in, logSize, logCapacity);
+		}
+		return sg;
+	}
+
+	static void readNames(DataInputStream in, HashMap<String, Integer> ids, ArrayList<String> names) throws IOException
+	{
+		int n = in.readInt();
+		for(int i = 0; i<n; i++)
+		{
+			ScaffoldGraph.getId(ids, names, in.readUTF());
+		}
+	}
+
+	/*
+	 * Reads n ints into an array with room for a given number of them
+	 */
+	static int[] readInts(DataInputStream in, int n, int capacity) throws IOException
+	{
+		int[] res = new int[capacity];
+		for(int i = 0; i<n; i++)
+		{
+			res[i] = in.readInt();
+		}
+		return res;
+	}
+}
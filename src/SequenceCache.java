@@ -0,0 +1,323 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/*
+ * A binary cache of the sequences of relevant reads or contigs so that they don't need to be pulled out of the full inputs again
+ *
+ * Layout: magic, offset of the index, then the sequence data, then the index
+ *   The index has a fingerprint of the source file and of the set of names requested, followed by one entry per sequence
+ *   Sequences are 2-bit packed, with runs of other characters (like N) and runs of lowercase stored separately
+ */
+public class SequenceCache {
+
+	// "GRFTSEQ1"
+	static final long MAGIC = 0x4752465453455131L;
+
+	static final char[] BASES = new char[] {'A', 'C', 'G', 'T'};
+
+	// The sequence data is mapped in windows of 2^WINDOW_BITS bytes, since a single mapping is limited to 2 GB
+	static final int WINDOW_BITS = 30;
+
+	// For each packed byte, the four bases it holds
+	static final byte[] UNPACK = new byte[256 * 4];
+	static
+	{
+		for(int b = 0; b<256; b++)
+		{
+			for(int j = 0; j<4; j++)
+			{
+				UNPACK[4 * b + j] = (byte)BASES[(b >> (2 * j)) & 3];
+			}
+		}
+	}
+
+	/*
+	 * Writes a map from name to sequence, along with fingerprints of the source file and of the names which were requested
+	 * The cache is written to a temporary file which is only moved into place once it is complete
+	 */
+	static void write(String fn, HashMap<String, String> map, String sourceFn, HashSet<String> requested) throws IOException
+	{
+		// Keep the map's own order so that reading it back rebuilds an identically ordered map
+		ArrayList<String> names = new ArrayList<String>(map.keySet());
+
+		String tmpFn = fn + ".tmp";
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFn), 1 << 20));
+		out.writeLong(MAGIC);
+		out.writeLong(0);
+		long pos = 16;
+
+		// Write the sequence data and remember where each piece of it went
+		long[] dataOffsets = new long[names.size()];
+		int[][] exceptionRuns = new int[names.size()][];
+		int[][] lowercaseRuns = new int[names.size()][];
+		for(int i = 0; i<names.size(); i++)
+		{
+			String seq = map.get(names.get(i));
+			dataOffsets[i] = pos;
+			Runs exceptions = new Runs(), lowercase = new Runs();
+			byte[] packed = pack(seq, exceptions, lowercase);
+			out.write(packed);
+			pos += packed.length;
+			exceptionRuns[i] = exceptions.toArray();
+			lowercaseRuns[i] = lowercase.toArray();
+		}
+
+		// Write the index
+		long indexOffset = pos;
+		File source = new File(sourceFn);
+		out.writeUTF(source.getAbsolutePath());
+		out.writeLong(source.length());
+		out.writeLong(source.lastModified());
+		out.writeLong(fingerprint(requested));
+		out.writeInt(names.size());
+		for(int i = 0; i<names.size(); i++)
+		{
+			out.writeUTF(names.get(i));
+			out.writeInt(map.get(names.get(i)).length());
+			out.writeLong(dataOffsets[i]);
+			for(int[] runs : new int[][] {exceptionRuns[i], lowercaseRuns[i]})
+			{
+				out.writeInt(runs.length);
+				for(int x : runs)
+				{
+					out.writeInt(x);
+				}
+			}
+		}
+		out.close();
+
+		RandomAccessFile raf = new RandomAccessFile(tmpFn, "rw");
+		raf.seek(8);
+		raf.writeLong(indexOffset);
+		raf.close();
+		Files.move(new File(tmpFn).toPath(), new File(fn).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/*
+	 * Packs a sequence into 2 bits per base, recording runs of non-ACGT characters as (start, length, character) triples
+	 * and runs of lowercase characters as (start, length) pairs
+	 */
+	static byte[] pack(String seq, Runs exceptions, Runs lowercase)
+	{
+		int n = seq.length();
+		byte[] res = new byte[(n + 3) / 4];
+		int lowerStart = -1;
+		for(int i = 0; i<n; i++)
+		{
+			char c = seq.charAt(i);
+			boolean lower = c >= 'a' && c <= 'z';
+			if(lower && lowerStart == -1)
+			{
+				lowerStart = i;
+			}
+			else if(!lower && lowerStart != -1)
+			{
+				lowercase.add(lowerStart);
+				lowercase.add(i - lowerStart);
+				lowerStart = -1;
+			}
+			char upper = lower ? (char)(c - 'a' + 'A') : c;
+			int code;
+			if(upper == 'A') code = 0;
+			else if(upper == 'C') code = 1;
+			else if(upper == 'G') code = 2;
+			else if(upper == 'T') code = 3;
+			else
+			{
+				code = 0;
+				int last = exceptions.n - 3;
+				if(last >= 0 && exceptions.a[last] + exceptions.a[last + 1] == i && exceptions.a[last + 2] == upper)
+				{
+					exceptions.a[last + 1]++;
+				}
+				else
+				{
+					exceptions.add(i);
+					exceptions.add(1);
+					exceptions.add((int)upper);
+				}
+			}
+			res[i >> 2] |= code << (2 * (i & 3));
+		}
+		if(lowerStart != -1)
+		{
+			lowercase.add(lowerStart);
+			lowercase.add(n - lowerStart);
+		}
+		return res;
+	}
+
+	/*
+	 * The runs of a sequence as a growable list of ints
+	 */
+	static class Runs
+	{
+		int n;
+		int[] a = new int[16];
+
+		void add(int x)
+		{
+			if(n == a.length)
+			{
+				a = Arrays.copyOf(a, 2 * n);
+			}
+			a[n++] = x;
+		}
+
+		int[] toArray()
+		{
+			return Arrays.copyOf(a, n);
+		}
+	}
+
+	/*
+	 * An order-independent fingerprint of a set of names
+	 */
+	static long fingerprint(HashSet<String> names)
+	{
+		long res = names.size();
+		for(String name : names)
+		{
+			byte[] b = name.getBytes(StandardCharsets.UTF_8);
+			res ^= IndexedFastq.NameBloomFilter.hash(b, 0, b.length);
+		}
+		return res;
+	}
+
+	/*
+	 * Reads a cache written by write(), memory-mapping the sequence data in a few large windows rather than once per sequence
+	 * Returns null if the file is missing or unreadable, or if it was made from a different source file or set of names
+	 */
+	@SuppressWarnings("resource")
+	static HashMap<String, String> read(String fn, String sourceFn, HashSet<String> requested)
+	{
+		try {
+			FileChannel channel = new RandomAccessFile(fn, "r").getChannel();
+			try {
+				return read(channel, sourceFn, requested, fn);
+			} finally {
+				channel.close();
+			}
+		} catch(Exception e) {
+			System.err.println("Could not read sequence cache " + fn);
+			return null;
+		}
+	}
+
+	static HashMap<String, String> read(FileChannel channel, String sourceFn, HashSet<String> requested, String fn) throws IOException
+	{
+		MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, 16);
+		if(header.getLong() != MAGIC)
+		{
+			System.err.println("Sequence cache " + fn + " is not in the current format");
+			return null;
+		}
+		long indexOffset = header.getLong();
+		DataInputStream index = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(indexOffset)), 1 << 16));
+
+		File source = new File(sourceFn);
+		String sourcePath = index.readUTF();
+		long sourceLength = index.readLong(), sourceModified = index.readLong(), requestedFingerprint = index.readLong();
+		if(!sourcePath.equals(source.getAbsolutePath()) || sourceLength != source.length() || sourceModified != source.lastModified())
+		{
+			System.err.println("Sequence cache " + fn + " is stale: " + sourceFn + " has changed since it was written");
+			return null;
+		}
+		if(requestedFingerprint != fingerprint(requested))
+		{
+			System.err.println("Sequence cache " + fn + " is stale: it was made for a different set of sequences");
+			return null;
+		}
+
+		MappedByteBuffer[] windows = new MappedByteBuffer[(int)((indexOffset >>> WINDOW_BITS) + 1)];
+		HashMap<String, String> res = new HashMap<String, String>();
+		int n = index.readInt();
+		for(int i = 0; i<n; i++)
+		{
+			String name = index.readUTF();
+			int length = index.readInt();
+			long dataOffset = index.readLong();
+			int[] exceptions = readRuns(index), lowercase = readRuns(index);
+			byte[] packed = new byte[(length + 3) / 4];
+			readData(channel, windows, indexOffset, dataOffset, packed);
+			res.put(name, unpack(packed, length, exceptions, lowercase));
+		}
+		return res;
+	}
+
+	static int[] readRuns(DataInputStream in) throws IOException
+	{
+		int[] res = new int[in.readInt()];
+		for(int i = 0; i<res.length; i++)
+		{
+			res[i] = in.readInt();
+		}
+		return res;
+	}
+
+	/*
+	 * Copies bytes of the sequence data starting at a given position into an array, mapping windows of the data the first time they are needed
+	 */
+	static void readData(FileChannel channel, MappedByteBuffer[] windows, long dataEnd, long pos, byte[] dst) throws IOException
+	{
+		int off = 0;
+		while(off < dst.length)
+		{
+			int idx = (int)(pos >>> WINDOW_BITS);
+			if(windows[idx] == null)
+			{
+				long start = (long)idx << WINDOW_BITS;
+				windows[idx] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(1L << WINDOW_BITS, dataEnd - start));
+			}
+			MappedByteBuffer window = windows[idx];
+			window.position((int)(pos & ((1L << WINDOW_BITS) - 1)));
+			int count = Math.min(dst.length - off, window.remaining());
+			window.get(dst, off, count);
+			pos += count;
+			off += count;
+		}
+	}
+
+	/*
+	 * Rebuilds a sequence from its packed bases and runs of exceptions and lowercase characters
+	 */
+	static String unpack(byte[] packed, int length, int[] exceptions, int[] lowercase)
+	{
+		byte[] res = new byte[packed.length * 4];
+		for(int i = 0; i<packed.length; i++)
+		{
+			System.arraycopy(UNPACK, 4 * (packed[i] & 0xff), res, 4 * i, 4);
+		}
+		for(int i = 0; i<exceptions.length; i += 3)
+		{
+			for(int j = exceptions[i]; j < exceptions[i] + exceptions[i+1]; j++)
+			{
+				res[j] = (byte)exceptions[i+2];
+			}
+		}
+		for(int i = 0; i<lowercase.length; i += 2)
+		{
+			for(int j = lowercase[i]; j < lowercase[i] + lowercase[i+1]; j++)
+			{
+				res[j] += 'a' - 'A';
+			}
+		}
+		return new String(res, 0, length, StandardCharsets.ISO_8859_1);
+	}
+}
@@ -24,6 +24,9 @@ public class Settings {
 	
 	static int MAX_GAP_BETWEEN_CONTIGS = 100000;
 	
+	// The number of threads to use for parallel stages
+	static int THREADS = Runtime.getRuntime().availableProcessors();
+	
 	// File name of PAF file containing read-to-contig mappings
 	static String pafFn = "";
 	
@@ -59,6 +62,30 @@ public class Settings {
 	
 	static boolean reuseRelevantSeqs = false;
 	
+	// Where to save the aggregated scaffold graph and its joins, or load them from when adding reads incrementally
+	static String scaffoldGraphFn = "";
+	
+	// Whether to add the alignments to the saved scaffold graph instead of building a new one
+	static boolean INCREMENTAL = false;
+	
+	// Where to write checkpoints of the stages of a run, and whether to resume from the latest valid one
+	static String checkpointDir = "";
+	static boolean RESUME = false;
+	
+	// Where to write the coverage of the contigs by the alignments as a bedGraph, and where to keep it for reuse
+	static String coverageFn = "";
+	static String coverageMapFile = "";
+	
+	// The width of the bins the coverage is measured in, and whether it counts aligned bases instead of alignments
+	static int COVERAGE_RESOLUTION = 100;
+	static boolean WEIGHTED_COVERAGE = false;
+	
+	// Whether to read the alignments one read at a time instead of loading them all, which needs each read's alignments to be together
+	static boolean STREAM_ALIGNMENTS = false;
+	
+	// Whether to fetch contig sequences from the FASTA file as they are needed instead of holding them all in memory
+	static boolean LOW_MEMORY = false;
+	
 	/*
 	 * Parse command line arguments
 	 */
@@ -77,6 +104,26 @@ public class Settings {
 				{
 					Settings.reuseRelevantSeqs = true;
 				}
+				if(arg.toLowerCase().endsWith("low_memory"))
+				{
+					Settings.LOW_MEMORY = true;
+				}
+				if(arg.toLowerCase().endsWith("incremental"))
+				{
+					Settings.INCREMENTAL = true;
+				}
+				if(arg.toLowerCase().endsWith("resume"))
+				{
+					Settings.RESUME = true;
+				}
+				if(arg.toLowerCase().endsWith("stream_alignments"))
+				{
+					Settings.STREAM_ALIGNMENTS = true;
+				}
+				if(arg.toLowerCase().endsWith("weighted_coverage"))
+				{
+					Settings.WEIGHTED_COVERAGE = true;
+				}
 			}
 			else
 			{
@@ -98,6 +145,26 @@ public class Settings {
 				{
 					Settings.graphFn = val;
 				}
+				if(field.equalsIgnoreCase("scaffold_graph_fn"))
+				{
+					Settings.scaffoldGraphFn = val;
+				}
+				if(field.equalsIgnoreCase("checkpoint_dir"))
+				{
+					Settings.checkpointDir = val;
+				}
+				if(field.equalsIgnoreCase("coverage_fn"))
+				{
+					Settings.coverageFn = val;
+				}
+				if(field.equalsIgnoreCase("coverage_map_file"))
+				{
+					Settings.coverageMapFile = val;
+				}
+				if(field.equalsIgnoreCase("coverage_resolution"))
+				{
+					Settings.COVERAGE_RESOLUTION = Integer.parseInt(val);
+				}
 				if(field.equalsIgnoreCase("full_out_gfa_fn"))
 				{
 					Settings.fullOutGfaFn = val;
@@ -155,6 +222,10 @@ public class Settings {
 				{
 					Settings.MAX_GAP = Integer.parseInt(val);
 				}
+				if(field.equalsIgnoreCase("threads"))
+				{
+					Settings.THREADS = Integer.parseInt(val);
+				}
 			}
 		}
 		if(Settings.pafFn.length() == 0 || Settings.fastaFn.length() == 0)
@@ -172,6 +243,38 @@ public class Settings {
 			usage();
 			System.exit(1);
 		}
+		if(Settings.INCREMENTAL && Settings.scaffoldGraphFn.length() == 0)
+		{
+			System.err.println("Incremental mode needs scaffold_graph_fn to be set");
+			System.exit(1);
+		}
+		if(Settings.RESUME && Settings.checkpointDir.length() == 0)
+		{
+			System.err.println("Resuming needs checkpoint_dir to be set");
+			System.exit(1);
+		}
+		if(Settings.INCREMENTAL && Settings.checkpointDir.length() > 0)
+		{
+			System.err.println("Checkpoints cannot be combined with --incremental");
+			System.exit(1);
+		}
+		if(Settings.STREAM_ALIGNMENTS && Settings.checkpointDir.length() > 0)
+		{
+			System.err.println("Checkpoints cannot be combined with --stream_alignments, since they save all of the alignments");
+			System.exit(1);
+		}
+		if(Settings.COVERAGE_RESOLUTION < 1)
+		{
+			System.err.println("coverage_resolution must be at least 1");
+			System.exit(1);
+		}
+		
+		// A saved graph refers to the contigs of the assembly, so it could not be added to after breaking them
+		if(Settings.ALLOW_BREAKS && Settings.scaffoldGraphFn.length() > 0)
+		{
+			System.err.println("Saving or updating a scaffold graph cannot be combined with --break");
+			System.exit(1);
+		}
 	}
 	
 	/*
@@ -189,7 +292,7 @@ public class Settings {
 		System.out.println("Required args:");
 		System.out.println("  aln_fn          (String) - a file containing the alignments of ultralong reads to contigs");
 		System.out.println("  fasta_fn        (String) - the contigs in FASTA format");
-		System.out.println("  read_fn         (String) - the ultralong reads in FASTQ format");
+		System.out.println("  read_fn         (String) - the ultralong reads in FASTQ format (or a comma-separated list of files)");
 		System.out.println("  read_map_file   (String) - where to output sequences of relevant reads");
 		System.out.println("  contig_map_file (String) - Where to output sequences of relevant contigs");
 		System.out.println("  out_file        (String) - the name of the file to output the scaffolded contigs to");
@@ -203,11 +306,22 @@ public class Settings {
 		System.out.println("  min_weight       (float)  [1000]  - weight required for an overlap to count");
 		System.out.println("  min_length       (int)    [3000]  - minimum length of alignments required on each read");
 		System.out.println("  max_gap          (int)    [10000] - maximum gap that scaffolds will try to span");
+		System.out.println("  threads          (int)    [all]   - number of threads to use");
 		System.out.println("  full_out_gfa_fn  (String) [none]  - where to write the full scaffold graph in GFA format");
 		System.out.println("  joins_out_gfa_fn (String) [none]  - where to write the joins which get made in GFA format");
 		System.out.println("  read_metadata_fn (String) [none]  - where to write the reads being used as a tsv");
+		System.out.println("  scaffold_graph_fn (String) [none] - where to save the scaffold graph so that later reads can be added to it");
+		System.out.println("  checkpoint_dir   (String) [none]  - where to save checkpoints of each stage of the run");
+		System.out.println("  coverage_fn      (String) [none]  - where to write the coverage of the contigs by the alignments as a bedGraph");
+		System.out.println("  coverage_map_file (String) [none] - where to save the coverage profile, reused with --reuse_relevant_seqs");
+		System.out.println("  coverage_resolution (int) [100]   - the width of the bins that coverage is measured in");
 		System.out.println("  --break                           - allows original contigs to be broken");
 		System.out.println("  --reuse_relevant_seqs             - reuse files with sequences of relevant reads and contigs");
+		System.out.println("  --low_memory                      - fetch contig sequences from the input as needed instead of keeping them in memory");
+		System.out.println("  --incremental                     - add the alignments of new reads to the graph in scaffold_graph_fn and update it");
+		System.out.println("  --resume                          - start from the latest valid checkpoint in checkpoint_dir");
+		System.out.println("  --stream_alignments               - read the alignments one read at a time, for files with each read's alignments together");
+		System.out.println("  --weighted_coverage               - measure coverage in aligned bases instead of alignments");
 		System.out.println();
 	}
 }
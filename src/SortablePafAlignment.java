@@ -8,11 +8,9 @@ public class SortablePafAlignment implements Comparable<SortablePafAlignment>
 	int contigLength, contigStart, contigEnd;
 	int mapq;
 	char strand;
-	String line;
 	// Call with a second parameter to denote that read and contig were flipped when calling minimap2
 	SortablePafAlignment(String line, int backwards)
 	{
-		this.line = line;
 		String[] ss = line.split("\t");
 		contigName = ss[0];
 		contigLength = Integer.parseInt(ss[1]);
@@ -27,7 +25,6 @@ public class SortablePafAlignment implements Comparable<SortablePafAlignment>
 	}
 	SortablePafAlignment(String line)
 	{
-		this.line = line;
 		String[] ss = line.split("\t");
 		readName = ss[0];
 		readLength = Integer.parseInt(ss[1]);
@@ -40,6 +37,21 @@ public class SortablePafAlignment implements Comparable<SortablePafAlignment>
 		contigEnd = Integer.parseInt(ss[8]);
 		mapq = Integer.parseInt(ss[11]);
 	}
+	// Build an alignment from its fields, given in the same order as the columns of a PAF line
+	SortablePafAlignment(String readName, int readLength, int readStart, int readEnd, char strand,
+			String contigName, int contigLength, int contigStart, int contigEnd, int mapq)
+	{
+		this.readName = readName;
+		this.readLength = readLength;
+		this.readStart = readStart;
+		this.readEnd = readEnd;
+		this.strand = strand;
+		this.contigName = contigName;
+		this.contigLength = contigLength;
+		this.contigStart = contigStart;
+		this.contigEnd = contigEnd;
+		this.mapq = mapq;
+	}
 
 	public int compareTo(SortablePafAlignment o) {
 		if(readStart != o.readStart)
@@ -50,12 +62,7 @@ public class SortablePafAlignment implements Comparable<SortablePafAlignment>
 	}
 	SortablePafAlignment copy()
 	{
-		SortablePafAlignment res = new SortablePafAlignment(line);
-		if(!res.contigName.equals(contigName)) res.contigName = contigName;
-		if(res.contigStart != contigStart) res.contigStart = contigStart;
-		if(res.contigLength != contigLength) res.contigLength = contigLength;
-		if(res.contigEnd != contigEnd) res.contigEnd = contigEnd;
-		return res;
+		return new SortablePafAlignment(readName, readLength, readStart, readEnd, strand, contigName, contigLength, contigStart, contigEnd, mapq);
 	}
 	
 }
\ No newline at end of file
@@ -1,13 +1,22 @@
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 
 public class StitchFasta {
+
+// Scaffolds are written with this many bases per line
+static final int LINE_LENGTH = 80;
+
+// Long sequences are formatted in blocks of this many lines, with a batch of blocks done in parallel
+static final int BLOCK_LINES = 1 << 16;
+
 static void usage()
 {
 	System.out.println("java -cp src StitchFasta [contigs] [scaffolds] [outputfasta]");
 }
-@SuppressWarnings("resource")
-public static void main(String[] args) throws IOException
+public static void main(String[] args) throws Exception
 {
 	String fastaFn = "", extraFastaFn = "", outFn = "";
 	if(args.length >= 3)
@@ -16,117 +25,144 @@ public static void main(String[] args) throws IOException
 		extraFastaFn = args[1];
 		outFn = args[2];
 	}
-	
+
 	else
 	{
 		usage();
 		System.exit(1);
 	}
-	
-	PrintWriter out = new PrintWriter(new File(outFn));
-	
+
+	IndexedFasta contigs = new IndexedFasta(fastaFn);
+	IndexedFasta scaffolds = new IndexedFasta(extraFastaFn);
+
+	/*
+	 * Find every contig which is part of a scaffold up front, using only the scaffold headers,
+	 * so that the rest of the original assembly can be copied without looking at its sequences
+	 */
+	ArrayList<String> headers = new ArrayList<String>();
 	HashSet<String> used = new HashSet<String>();
-	
-	BufferedReader br = new BufferedReader(new FileReader(new File(extraFastaFn)));
-	
-	ArrayList<Integer> contigLengths = new ArrayList<Integer>();
-	long totLength = 0;
-	
-	while(true)
+	for(IndexedFasta.Entry e : scaffolds.entries)
 	{
-		try {
-			String[] line = br.readLine().split(" ");
-			String name = line[0].substring(1);
-			String[] subcontigs = new String[0];
-			if(line.length > 1)
+		String header = scaffolds.header(e);
+		headers.add(header);
+		String[] line = header.split(" ");
+		String[] subcontigs;
+		if(line.length > 1)
+		{
+			subcontigs = Arrays.copyOfRange(line, 1, line.length);
+		}
+		else
+		{
+			subcontigs = e.name.split("&");
+		}
+		for(String sc : subcontigs)
+		{
+			used.add(sc);
+
+			/*
+			 * Handle contigs which were broken in a previous run
+			 * This will occur if the contigs are realigned after being broken in misassembly correction
+			 */
+			if(sc.indexOf('_') != -1)
 			{
-				subcontigs = line;
+				used.add(sc.substring(0, sc.lastIndexOf('_')));
 			}
-			else
+		}
+	}
+
+	ArrayList<Integer> contigLengths = new ArrayList<Integer>();
+	long totLength = 0;
+
+	FileChannel out = new FileOutputStream(outFn).getChannel();
+	try {
+		for(int i = 0; i<scaffolds.entries.size(); i++)
+		{
+			IndexedFasta.Entry e = scaffolds.entries.get(i);
+			write(out, ">" + headers.get(i) + "\n");
+			writeWrapped(out, scaffolds, e, LINE_LENGTH);
+			contigLengths.add(e.length);
+			totLength += e.length;
+		}
+
+		// Contigs which are not in any scaffold keep their header and line layout, and are copied from file to file where possible
+		for(IndexedFasta.Entry e : contigs.entries)
+		{
+			if(used.contains(e.name))
 			{
-				subcontigs = name.split("&");
+				continue;
 			}
-			for(String sc : subcontigs)
+			write(out, ">" + contigs.header(e) + "\n");
+			if(contigs.canTransfer(e))
 			{
-				used.add(sc);
-				
-				/*
-				 * Handle contigs which were broken in a previous run
-				 * This will occur if the contigs are realigned after being broken in misassembly correction
-				 */
-				if(sc.indexOf('_') != -1)
-				{
-					used.add(sc.substring(0, sc.lastIndexOf('_')));
-				}
+				contigs.transferTo(e, out);
+				write(out, "\n");
 			}
-			String contig = br.readLine();
-			out.print(">" + name);
-			for(int i = 1; i<line.length; i++)
+			else
 			{
-				out.print(" "+line[i]);
+				writeWrapped(out, contigs, e, Math.max(e.lineBases, 1));
 			}
-			out.println();
-			contigLengths.add(contig.length());
-			totLength += contig.length();
-			printContig(out, contig);
-		} catch(Exception e) {
-			break;
+			contigLengths.add(e.length);
+			totLength += e.length;
 		}
+	} finally {
+		out.close();
+		contigs.close();
+		scaffolds.close();
 	}
-	
-	br = new BufferedReader(new FileReader(new File(fastaFn)));
-	boolean print = false;
-	int curLength = 0;
-	while(true)
+
+	ReadUtils.assemblyStats(contigLengths, totLength);
+}
+
+/*
+ * Writes out a sequence from an indexed file with a given number of characters per line
+ * The lines are copied straight from the file into blocks of output, and each batch of blocks is filled in parallel and then written in order
+ */
+static void writeWrapped(FileChannel out, IndexedFasta fasta, IndexedFasta.Entry e, int lineLength) throws Exception
+{
+	long blockBases = (long)BLOCK_LINES * lineLength;
+	int numBlocks = (int)((e.length + blockBases - 1) / blockBases);
+	int batchSize = Math.max(1, Settings.THREADS);
+	byte[][] blocks = new byte[batchSize][];
+	for(int firstBlock = 0; firstBlock < numBlocks; firstBlock += batchSize)
 	{
-		try {
-			String line = br.readLine();
-			if(line.length() == 0) continue;
-			if(line.charAt(0) == '>')
-			{
-				if(print)
-				{
-					totLength += curLength;
-					contigLengths.add(curLength);
-				}
-				curLength = 0;
-				String name = line.substring(1).split(" ")[0];
-				if(used.contains(name))
+		int first = firstBlock;
+		int count = Math.min(batchSize, numBlocks - first);
+		ScaffoldGraph.parallelFor(count, b -> {
+			int start = (int)((first + b) * blockBases);
+			int end = (int)Math.min(e.length, start + blockBases);
+			byte[] block = new byte[end - start + (end - start + lineLength - 1) / lineLength];
+			int pos = 0;
+			try {
+				for(int s = start; s < end; s += lineLength)
 				{
-					print = false;
+					int lineEnd = Math.min(s + lineLength, end);
+					fasta.fetch(e, s, lineEnd, block, pos);
+					pos += lineEnd - s;
+					block[pos++] = '\n';
 				}
-				else
-				{
-					print = true;
-					out.println(line);
-				}
-			}
-			else
-			{
-				curLength += line.length();
-				if(print) out.println(line);
+			} catch(IOException ex) {
+				throw new UncheckedIOException(ex);
 			}
-		} catch(Exception e) {
-			break;
+			blocks[b] = block;
+		});
+		for(int b = 0; b<count; b++)
+		{
+			write(out, ByteBuffer.wrap(blocks[b]));
+			blocks[b] = null;
 		}
 	}
-	if(print)
-	{
-		totLength += curLength;
-		contigLengths.add(curLength);
-	}
-	out.close();
-	
-	ReadUtils.assemblyStats(contigLengths, totLength);
 }
 
-/*
- * Prints out a contig with 80 characters per line
- */
-static void printContig(PrintWriter out, String contig)
+static void write(FileChannel out, String s) throws IOException
+{
+	write(out, ByteBuffer.wrap(s.getBytes(StandardCharsets.ISO_8859_1)));
+}
+
+static void write(FileChannel out, ByteBuffer buf) throws IOException
 {
-	int n = contig.length();
-	for(int i = 0; i<n; i+= 80)
-		out.println(contig.substring(i, Math.min(i+80, n)));
+	while(buf.hasRemaining())
+	{
+		out.write(buf);
+	}
 }
 }
@@ -104,31 +104,9 @@ public class TsvToAgp {
 	 */
 	static HashMap<String, Integer> getContigLengths() throws Exception
 	{
-		HashMap<String, Integer> res = new HashMap<String, Integer>();
-		Scanner input = new Scanner(new FileInputStream(new File(piecesFn)));
-		String pieceName = "";
-		StringBuilder sb = new StringBuilder("");
-		while(input.hasNext())
-		{
-			String line = input.nextLine();
-			if(line.startsWith(">"))
-			{
-				if(pieceName.length() > 0)
-				{
-					res.put(pieceName, sb.length());
-				}
-				sb = new StringBuilder();
-				pieceName = line.split(" ")[0].substring(1);
-			}
-			else
-			{
-				sb.append(line);
-			}
-		}
-		if(pieceName.length() > 0)
-		{
-			res.put(pieceName, sb.length());
-		}
+		IndexedFasta pieces = new IndexedFasta(piecesFn);
+		HashMap<String, Integer> res = pieces.getLengths();
+		pieces.close();
 		return res;
 	}
 	